@@ -0,0 +1,82 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.ROI;
+import icy.roi.ROI2D;
+import icy.roi.ROI3D;
+
+/**
+ * Bit-packed binary mask over a 3D stack (1 bit per voxel)
+ * 
+ * @author Alexandre Dufour
+ */
+class BitMask
+{
+    private final int width;
+    
+    private final long[][] bits;
+    
+    /**
+     * @param width
+     *            the width of the stack
+     * @param height
+     *            the height of the stack
+     * @param depth
+     *            the depth of the stack
+     */
+    BitMask(int width, int height, int depth)
+    {
+        this.width = width;
+        this.bits = new long[depth][(width * height + 63) >> 6];
+    }
+    
+    boolean get(int z, int offset)
+    {
+        return (bits[z][offset >> 6] & (1L << offset)) != 0;
+    }
+    
+    void set(int z, int offset)
+    {
+        bits[z][offset >> 6] |= 1L << offset;
+    }
+    
+    /**
+     * Sets all the voxels of the specified ROI
+     */
+    void set(ROI roi)
+    {
+        if (roi instanceof ROI2D)
+        {
+            set(((ROI2D) roi).getBooleanMask(true), Math.max(((ROI2D) roi).getZ(), 0));
+        }
+        else if (roi instanceof ROI3D)
+        {
+            for (Entry<Integer, BooleanMask2D> slice : ((ROI3D) roi).getBooleanMask(true).mask.entrySet())
+                set(slice.getValue(), slice.getKey());
+        }
+    }
+    
+    private void set(BooleanMask2D mask, int z)
+    {
+        final int w = mask.bounds.width;
+        final int h = mask.bounds.height;
+        final boolean[] _mask = mask.mask;
+        
+        int maskOffset = 0;
+        for (int j = 0; j < h; j++)
+        {
+            int offset = (mask.bounds.y + j) * width + mask.bounds.x;
+            for (int i = 0; i < w; i++, maskOffset++, offset++)
+                if (_mask[maskOffset]) set(z, offset);
+        }
+    }
+    
+    void clear()
+    {
+        for (long[] slice : bits)
+            Arrays.fill(slice, 0L);
+    }
+}
@@ -0,0 +1,231 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.List;
+
+import icy.image.IcyBufferedImage;
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import icy.sequence.SequenceDataIterator;
+import icy.type.DataIteratorUtil;
+import icy.type.DataType;
+import plugins.adufour.roi.LabelExtractor;
+import plugins.adufour.roi.LabelExtractor.ExtractionType;
+
+/**
+ * Candidate object regions of a classified frame, detected on a downsampled copy of the frame
+ * (coarse-to-fine mode).<br>
+ * <br>
+ * Each block of <code>factor x factor</code> voxels (in XY) of the frame is marked as foreground if
+ * any of its voxels belongs to a non-background class, and the connected components of these
+ * blocks form the candidate regions. Since every object of the frame (whatever its class) lies
+ * within a non-background connected component, each object is entirely covered by the blocks of
+ * exactly one candidate region. Objects can therefore be extracted at full resolution within each
+ * candidate region separately, with the same result as on the entire frame. Candidate regions
+ * whose blocks cover less than <code>minSize</code> voxels cannot contain a valid object and are
+ * discarded.
+ * 
+ * @author Alexandre Dufour
+ */
+class CandidateRegions
+{
+    /**
+     * Downsampling factor used by default
+     */
+    static final int DEFAULT_FACTOR = 4;
+    
+    /**
+     * Fraction of the frame area above which the candidate regions are not worth refining
+     * separately (the frame is then processed at full resolution), see {@link #getProcessedArea()}
+     */
+    static final double MAX_COVERAGE = 0.5;
+    
+    private final int factor;
+    
+    private final int coarseWidth;
+    
+    /**
+     * Candidate region of each block (1-based, 0 for background or discarded regions)
+     */
+    private final int[][] labels;
+    
+    /**
+     * Full-resolution XY bounds of each candidate region (minX, minY, maxX, maxY)
+     */
+    private final int[][] bounds;
+    
+    private final long processedArea;
+    
+    private CandidateRegions(int factor, int coarseWidth, int[][] labels, int[][] bounds, long processedArea)
+    {
+        this.factor = factor;
+        this.coarseWidth = coarseWidth;
+        this.labels = labels;
+        this.bounds = bounds;
+        this.processedArea = processedArea;
+    }
+    
+    /**
+     * Detects the candidate regions of a classified frame
+     * 
+     * @param classes
+     *            the class of each voxel, slice by slice (0 for background, in arrays of any
+     *            primitive type)
+     * @param width
+     *            the width of the frame
+     * @param height
+     *            the height of the frame
+     * @param factor
+     *            the downsampling factor (in X and Y)
+     * @param minSize
+     *            the minimum size (in voxels) of the objects
+     * @return the candidate regions
+     */
+    static CandidateRegions find(Object[] classes, int width, int height, int factor, int minSize)
+    {
+        final int depth = classes.length;
+        final int coarseWidth = (width + factor - 1) / factor;
+        final int coarseHeight = (height + factor - 1) / factor;
+        
+        // 1) downsample the foreground (any non-background voxel marks its block)
+        
+        byte[] row = new byte[width];
+        
+        Sequence coarse = new Sequence("Coarse classes");
+        for (int z = 0; z < depth; z++)
+        {
+            IcyBufferedImage image = new IcyBufferedImage(coarseWidth, coarseHeight, 1, DataType.UBYTE);
+            coarse.setImage(0, z, image);
+            
+            byte[] _coarse = (byte[]) image.getDataXY(0);
+            
+            for (int j = 0; j < height; j++)
+            {
+                HKMeans.readClasses(classes[z], j * width, row, 0, width);
+                
+                int coarseOffset = (j / factor) * coarseWidth;
+                for (int i = 0; i < width; i++)
+                    if (row[i] != 0) _coarse[coarseOffset + i / factor] = 1;
+            }
+        }
+        
+        // 2) label the coarse foreground
+        
+        List<ROI> regions = LabelExtractor.extractLabels(coarse, 0, 0, ExtractionType.ANY_LABEL_VS_BACKGROUND, 0);
+        
+        Sequence coarseLabels = new Sequence("Candidate regions");
+        for (int z = 0; z < depth; z++)
+            coarseLabels.setImage(0, z, new IcyBufferedImage(coarseWidth, coarseHeight, 1, DataType.INT));
+        
+        for (int region = 0; region < regions.size(); region++)
+            DataIteratorUtil.set(new SequenceDataIterator(coarseLabels, regions.get(region)), region + 1);
+        
+        // 3) measure the regions and discard those that are too small
+        
+        int[] sizes = new int[regions.size() + 1];
+        int[][] coarseBounds = new int[regions.size() + 1][];
+        int[][] labels = new int[depth][];
+        
+        for (int z = 0; z < depth; z++)
+        {
+            labels[z] = coarseLabels.getDataXYAsInt(0, z, 0);
+            
+            for (int offset = 0; offset < labels[z].length; offset++)
+            {
+                int label = labels[z][offset];
+                if (label == 0) continue;
+                
+                int i = offset % coarseWidth, j = offset / coarseWidth;
+                int[] box = coarseBounds[label];
+                if (box == null)
+                {
+                    coarseBounds[label] = new int[] { i, j, i, j };
+                }
+                else
+                {
+                    box[0] = Math.min(box[0], i);
+                    box[1] = Math.min(box[1], j);
+                    box[2] = Math.max(box[2], i);
+                    box[3] = Math.max(box[3], j);
+                }
+                sizes[label]++;
+            }
+        }
+        
+        // renumber the remaining regions
+        int[] newLabels = new int[sizes.length];
+        int nbRegions = 0;
+        for (int label = 1; label < sizes.length; label++)
+            if ((long) sizes[label] * factor * factor >= minSize) newLabels[label] = ++nbRegions;
+        
+        for (int[] slice : labels)
+            for (int offset = 0; offset < slice.length; offset++)
+                slice[offset] = newLabels[slice[offset]];
+        
+        int[][] bounds = new int[nbRegions][];
+        long processedArea = 0;
+        for (int label = 1; label < sizes.length; label++)
+        {
+            if (newLabels[label] == 0) continue;
+            
+            int[] box = coarseBounds[label];
+            int[] fullBox = { box[0] * factor, box[1] * factor, Math.min(width, (box[2] + 1) * factor) - 1, Math.min(height, (box[3] + 1) * factor) - 1 };
+            bounds[newLabels[label] - 1] = fullBox;
+            processedArea += (long) (fullBox[2] - fullBox[0] + 1) * (fullBox[3] - fullBox[1] + 1);
+        }
+        
+        return new CandidateRegions(factor, coarseWidth, labels, bounds, processedArea);
+    }
+    
+    /**
+     * @return the number of candidate regions
+     */
+    int getCount()
+    {
+        return bounds.length;
+    }
+    
+    /**
+     * @return the full-resolution XY bounds (minX, minY, maxX, maxY, inclusive) of the specified
+     *         region
+     */
+    int[] getBounds(int region)
+    {
+        return bounds[region];
+    }
+    
+    /**
+     * @return the XY area labeled for each class when the regions are refined separately, i.e. the
+     *         total area of the region bounds (each region being labeled within its own bounds,
+     *         and regions bounds possibly overlapping)
+     */
+    long getProcessedArea()
+    {
+        return processedArea;
+    }
+    
+    /**
+     * @return the downsampling factor (in X and Y)
+     */
+    int getFactor()
+    {
+        return factor;
+    }
+    
+    /**
+     * @return the width of the downsampled frame
+     */
+    int getCoarseWidth()
+    {
+        return coarseWidth;
+    }
+    
+    /**
+     * @return the candidate region of each block of the specified slice (1-based, 0 for
+     *         background or discarded regions). The full-resolution voxel <code>(x, y)</code> lies
+     *         in block <code>(y / factor) * coarseWidth + x / factor</code>
+     */
+    int[] getLabels(int z)
+    {
+        return labels[z];
+    }
+}
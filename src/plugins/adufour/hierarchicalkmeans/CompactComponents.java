@@ -0,0 +1,182 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point3i;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.connectedcomponents.ConnectedComponent;
+
+/**
+ * Connected component extraction on primitive arrays, used by the legacy
+ * {@link HKMeans#hKMeans(Sequence, double, int, int, int, Double, Sequence)} path.<br>
+ * <br>
+ * Components are found by flood filling (8-connectivity in 2D, 26-connectivity in 3D) directly
+ * from the class image, with bit masks to track visited voxels and objects found so far, instead
+ * of intermediate 32-bit images. Size and intensity constraints are checked during the fill, so
+ * that {@link ConnectedComponent} objects (and their points) are only created for valid components.
+ * Components are returned in raster order of their first voxel, and their points in raster order.
+ * 
+ * @author Alexandre Dufour
+ */
+class CompactComponents
+{
+    private final int width;
+    
+    private final int height;
+    
+    private final int depth;
+    
+    private final BitMask visited;
+    
+    /**
+     * Voxels of the current component (as indices in the stack, see
+     * {@link #getIndex(int, int, int)}, which may exceed the range of an int)
+     */
+    private long[] queue = new long[1024];
+    
+    /**
+     * @param width
+     *            the width of the stack
+     * @param height
+     *            the height of the stack
+     * @param depth
+     *            the depth of the stack
+     */
+    CompactComponents(int width, int height, int depth)
+    {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.visited = new BitMask(width, height, depth);
+    }
+    
+    /**
+     * Extracts the valid components of classes <code>currentClass</code> and above that do not
+     * overlap the objects found so far, and adds them to these objects
+     * 
+     * @param classes
+     *            the class of each voxel (slice by slice, in the lower 16 bits)
+     * @param currentClass
+     *            the current class
+     * @param objects
+     *            the objects found so far (updated with the new components)
+     * @param minSize
+     *            the minimum size in voxels of the components
+     * @param maxSize
+     *            the maximum size in voxels of the components
+     * @param seqIN
+     *            the input sequence (to check the intensity constraint)
+     * @param t
+     *            the time point being processed
+     * @param c
+     *            the channel being processed
+     * @param minValue
+     *            the minimum intensity value each component should have, or <code>null</code>
+     * @return the valid components
+     */
+    List<ConnectedComponent> extract(int[][] classes, int currentClass, BitMask objects, int minSize, int maxSize, Sequence seqIN, int t, int c, Double minValue)
+    {
+        final int sliceSize = width * height;
+        final DataType dataType = seqIN.getDataType_();
+        
+        Object[] intensities = null;
+        if (minValue != null)
+        {
+            intensities = new Object[depth];
+            for (int z = 0; z < depth; z++)
+                intensities[z] = seqIN.getDataXY(t, z, c);
+        }
+        
+        List<ConnectedComponent> components = new ArrayList<ConnectedComponent>();
+        
+        visited.clear();
+        
+        for (int seedZ = 0; seedZ < depth; seedZ++)
+            for (int seedOffset = 0; seedOffset < sliceSize; seedOffset++)
+            {
+                if ((classes[seedZ][seedOffset] & 0xffff) < currentClass || objects.get(seedZ, seedOffset) || visited.get(seedZ, seedOffset)) continue;
+                
+                // flood fill the component of the seed
+                
+                int size = 0, head = 0;
+                double max = -Double.MAX_VALUE;
+                
+                visited.set(seedZ, seedOffset);
+                push(size++, getIndex(seedZ, seedOffset, sliceSize));
+                
+                while (head < size)
+                {
+                    long voxel = queue[head++];
+                    int z = getZ(voxel, sliceSize), offset = getOffset(voxel, sliceSize);
+                    int x = offset % width, y = offset / width;
+                    
+                    if (intensities != null) max = Math.max(max, Array1DUtil.getValue(intensities[z], offset, dataType));
+                    
+                    for (int nz = Math.max(0, z - 1); nz <= Math.min(depth - 1, z + 1); nz++)
+                        for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++)
+                            for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++)
+                            {
+                                int neighbor = ny * width + nx;
+                                if ((classes[nz][neighbor] & 0xffff) < currentClass || objects.get(nz, neighbor) || visited.get(nz, neighbor)) continue;
+                                
+                                visited.set(nz, neighbor);
+                                push(size++, getIndex(nz, neighbor, sliceSize));
+                            }
+                }
+                
+                if (size < minSize || size > maxSize) continue;
+                if (minValue != null && max < minValue) continue;
+                
+                // valid component: store its points in raster order
+                
+                Arrays.sort(queue, 0, size);
+                
+                ConnectedComponent component = new ConnectedComponent(t);
+                for (int i = 0; i < size; i++)
+                {
+                    int z = getZ(queue[i], sliceSize), offset = getOffset(queue[i], sliceSize);
+                    component.addPoint(new Point3i(offset % width, offset / width, z));
+                    objects.set(z, offset);
+                }
+                components.add(component);
+            }
+        
+        return components;
+    }
+    
+    /**
+     * @return the index of the specified voxel in the stack (in raster order, as a long since
+     *         stacks may hold more than 2<sup>31</sup> voxels)
+     */
+    static long getIndex(int z, int offset, int sliceSize)
+    {
+        return (long) z * sliceSize + offset;
+    }
+    
+    /**
+     * @return the slice of the voxel with the specified index
+     */
+    static int getZ(long index, int sliceSize)
+    {
+        return (int) (index / sliceSize);
+    }
+    
+    /**
+     * @return the offset (in its slice) of the voxel with the specified index
+     */
+    static int getOffset(long index, int sliceSize)
+    {
+        return (int) (index % sliceSize);
+    }
+    
+    private void push(int index, long voxel)
+    {
+        if (index == queue.length) queue = Arrays.copyOf(queue, queue.length * 2);
+        queue[index] = voxel;
+    }
+}
@@ -0,0 +1,195 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import icy.sequence.Sequence;
+
+/**
+ * Describes how an HK-Means segmentation should be run, and how much memory it is expected to
+ * use. Plans are normally created by {@link MemoryPlanner}.
+ * 
+ * @author Alexandre Dufour
+ */
+public class ExecutionPlan
+{
+    private final int nbThreads;
+    
+    private final long estimatedMemory;
+    
+    private final long budget;
+    
+    private int samplingStride = 1;
+    
+    private boolean temporal = false;
+    
+    private int pyramidFactor = 1;
+    
+    private ExecutionProfile profile;
+    
+    private Sequence intensityReference;
+    
+    /**
+     * @param nbThreads
+     *            the number of (T, C) work units to process in parallel
+     * @param estimatedMemory
+     *            the estimated peak memory (in bytes) of the segmentation
+     * @param budget
+     *            the memory budget (in bytes) this plan was made for
+     */
+    public ExecutionPlan(int nbThreads, long estimatedMemory, long budget)
+    {
+        this.nbThreads = nbThreads;
+        this.estimatedMemory = estimatedMemory;
+        this.budget = budget;
+    }
+    
+    /**
+     * @return the number of (T, C) work units to process in parallel
+     */
+    public int getNbThreads()
+    {
+        return nbThreads;
+    }
+    
+    /**
+     * @return the estimated peak memory (in bytes) of the segmentation (on top of the input
+     *         sequence and the extracted objects)
+     */
+    public long getEstimatedMemory()
+    {
+        return estimatedMemory;
+    }
+    
+    /**
+     * @return the memory budget (in bytes) this plan was made for
+     */
+    public long getBudget()
+    {
+        return budget;
+    }
+    
+    /**
+     * @return the stride used to sample each frame when computing the K-Means thresholds (1 if
+     *         every voxel is used)
+     */
+    public int getSamplingStride()
+    {
+        return samplingStride;
+    }
+    
+    /**
+     * Sets the stride used to sample each frame when computing the K-Means thresholds. If larger
+     * than 1, the thresholds are computed from a stratified subsample of about 1 voxel out of
+     * <code>stride</code>, falling back to a full scan whenever the sampled thresholds are unstable
+     * (see {@link HistogramKMeans}).
+     * 
+     * @param stride
+     *            the sampling stride (1 to use every voxel)
+     */
+    public void setSamplingStride(int stride)
+    {
+        this.samplingStride = Math.max(1, stride);
+    }
+    
+    /**
+     * @return <code>true</code> if the K-Means thresholds of each frame are seeded with those of
+     *         the previous frame (see {@link TemporalKMeans})
+     */
+    public boolean isTemporal()
+    {
+        return temporal;
+    }
+    
+    /**
+     * Sets whether the K-Means thresholds of each frame should be seeded with those of the previous
+     * frame (see {@link TemporalKMeans}). Since frames then depend on each other, the time points of
+     * each channel are processed sequentially (only channels are processed in parallel)
+     * 
+     * @param temporal
+     *            <code>true</code> to seed each frame with the previous one
+     */
+    public void setTemporal(boolean temporal)
+    {
+        this.temporal = temporal;
+    }
+    
+    /**
+     * @return the downsampling factor used to find candidate regions before extracting objects at
+     *         full resolution (1 if the entire frame is processed at full resolution)
+     */
+    public int getPyramidFactor()
+    {
+        return pyramidFactor;
+    }
+    
+    /**
+     * Sets the downsampling factor (in X and Y) used to find candidate regions before extracting
+     * objects at full resolution. If larger than 1, objects are only extracted within the
+     * candidate regions (coarse-to-fine mode), which is much faster on large and sparse images. The
+     * extracted objects are the same as in full resolution, although their order may differ (see
+     * {@link HKMeans})
+     * 
+     * @param factor
+     *            the downsampling factor (1 to process the entire frame at full resolution)
+     */
+    public void setPyramidFactor(int factor)
+    {
+        this.pyramidFactor = Math.max(1, factor);
+    }
+    
+    /**
+     * @return the profile receiving the time and memory spent in each stage of the segmentation,
+     *         or <code>null</code> if the segmentation is not profiled
+     */
+    public ExecutionProfile getProfile()
+    {
+        return profile;
+    }
+    
+    /**
+     * Sets the profile receiving the time and memory spent in each stage of the segmentation
+     * 
+     * @param profile
+     *            the profile, or <code>null</code> to disable profiling (default)
+     */
+    public void setProfile(ExecutionProfile profile)
+    {
+        this.profile = profile;
+    }
+    
+    /**
+     * @return the sequence on which the minimum intensity constraint is evaluated, or
+     *         <code>null</code> to evaluate it on the input sequence
+     */
+    public Sequence getIntensityReference()
+    {
+        return intensityReference;
+    }
+    
+    /**
+     * Sets the sequence on which the minimum intensity constraint is evaluated. The constraint
+     * applies to the maximum intensity of each object over all time points and channels of this
+     * sequence, hence a single-frame projection of the input (its maximum over all time points and
+     * channels) yields the same objects as the input itself. This is used when the input sequence
+     * is not entirely available (e.g. in a shard worker)
+     * 
+     * @param reference
+     *            the reference sequence, or <code>null</code> to use the input sequence (default)
+     */
+    public void setIntensityReference(Sequence reference)
+    {
+        this.intensityReference = reference;
+    }
+    
+    /**
+     * @return <code>true</code> if the estimated memory fits within the budget
+     */
+    public boolean isWithinBudget()
+    {
+        return estimatedMemory <= budget;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return nbThreads + " thread" + (nbThreads > 1 ? "s" : "") + ", ~" + (estimatedMemory >> 20) + " MB";
+    }
+}
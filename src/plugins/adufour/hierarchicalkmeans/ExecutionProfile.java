@@ -0,0 +1,151 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates the time spent and the memory allocated in each stage of an HK-Means segmentation
+ * (over all processed frames and threads), and counts the frames extracted within their candidate
+ * regions in coarse-to-fine mode (see {@link #getRefinedFrameCount()}). A profile is attached to an {@link ExecutionPlan} via
+ * {@link ExecutionPlan#setProfile(ExecutionProfile)}.<br>
+ * Allocations are only measured if the JVM supports per-thread allocation counters (e.g. HotSpot),
+ * see {@link #isAllocationSupported()}.
+ * 
+ * @author Alexandre Dufour
+ */
+public class ExecutionProfile
+{
+    public enum Stage
+    {
+        /**
+         * Copy of the current frame
+         */
+        COPY,
+        /**
+         * Gaussian pre-filter
+         */
+        FILTER,
+        /**
+         * Computation and application of the K-Means thresholds
+         */
+        THRESHOLDS,
+        /**
+         * Hierarchical extraction of the objects (labeling, size and intensity constraints)
+         */
+        EXTRACTION
+    }
+    
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    
+    private static final boolean allocationSupported = threads instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+    
+    private final AtomicLongArray times = new AtomicLongArray(Stage.values().length);
+    
+    private final AtomicLongArray allocations = new AtomicLongArray(Stage.values().length);
+    
+    private final AtomicInteger refinedFrames = new AtomicInteger();
+    
+    /**
+     * @return <code>true</code> if allocations can be measured on this JVM
+     */
+    public static boolean isAllocationSupported()
+    {
+        return allocationSupported;
+    }
+    
+    private static long getAllocatedBytes()
+    {
+        if (!allocationSupported) return 0;
+        
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    /**
+     * Marks the beginning of a stage in the current thread
+     * 
+     * @return a token to give to {@link #end(Stage, long[])}
+     */
+    public long[] begin()
+    {
+        return new long[] { System.nanoTime(), getAllocatedBytes() };
+    }
+    
+    /**
+     * Marks the end of a stage in the current thread
+     * 
+     * @param stage
+     *            the stage that ended
+     * @param token
+     *            the token returned by {@link #begin()} at the beginning of the stage
+     */
+    public void end(Stage stage, long[] token)
+    {
+        times.addAndGet(stage.ordinal(), System.nanoTime() - token[0]);
+        allocations.addAndGet(stage.ordinal(), getAllocatedBytes() - token[1]);
+    }
+    
+    /**
+     * @return the total time (in nanoseconds) spent in the specified stage
+     */
+    public long getTime(Stage stage)
+    {
+        return times.get(stage.ordinal());
+    }
+    
+    /**
+     * @return the total memory (in bytes) allocated in the specified stage (0 if allocations are
+     *         not supported)
+     */
+    public long getAllocatedBytes(Stage stage)
+    {
+        return allocations.get(stage.ordinal());
+    }
+    
+    /**
+     * Counts a frame whose objects were extracted within its candidate regions (coarse-to-fine
+     * mode), rather than on the entire frame
+     */
+    public void countRefinedFrame()
+    {
+        refinedFrames.incrementAndGet();
+    }
+    
+    /**
+     * @return the number of frames whose objects were extracted within their candidate regions
+     *         (frames where the candidate regions cover too large an area are processed entirely,
+     *         and are not counted)
+     */
+    public int getRefinedFrameCount()
+    {
+        return refinedFrames.get();
+    }
+    
+    /**
+     * Clears all measures
+     */
+    public void reset()
+    {
+        for (int i = 0; i < times.length(); i++)
+        {
+            times.set(i, 0);
+            allocations.set(i, 0);
+        }
+        refinedFrames.set(0);
+    }
+    
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values())
+        {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(stage.name().toLowerCase()).append(": ").append(getTime(stage) / 1000000).append(" ms");
+            if (allocationSupported) sb.append(" / ").append(getAllocatedBytes(stage) >> 10).append(" KB");
+        }
+        return sb.toString();
+    }
+}
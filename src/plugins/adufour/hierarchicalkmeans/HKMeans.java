@@ -3,8 +3,11 @@ package plugins.adufour.hierarchicalkmeans;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
-import javax.vecmath.Point3i;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import icy.image.IcyBufferedImage;
 import icy.roi.ROI;
@@ -17,11 +20,11 @@ import icy.type.DataType;
 import icy.type.collection.array.Array1DUtil;
 import icy.type.collection.array.ArrayUtil;
 import plugins.adufour.connectedcomponents.ConnectedComponent;
-import plugins.adufour.connectedcomponents.ConnectedComponents;
 import plugins.adufour.ezplug.EzStatus;
 import plugins.adufour.filtering.Convolution1D;
 import plugins.adufour.filtering.ConvolutionException;
 import plugins.adufour.filtering.Kernels1D;
+import plugins.adufour.hierarchicalkmeans.ExecutionProfile.Stage;
 import plugins.adufour.roi.LabelExtractor;
 import plugins.adufour.roi.LabelExtractor.ExtractionType;
 import plugins.adufour.thresholder.KMeans;
@@ -65,7 +68,6 @@ public class HKMeans
             throws ConvolutionException
     {
         boolean outputLabeledSequence = (seqOUT != null);
-        if (seqOUT == null) seqOUT = new Sequence();
         
         final int width = seqIN.getSizeX();
         final int height = seqIN.getSizeY();
@@ -74,96 +76,75 @@ public class HKMeans
         final int channels = seqIN.getSizeC();
         
         Sequence seqLABELS = new Sequence();
-        Sequence seqC = new Sequence();
-        seqC.setName("Current class");
-        
         for (int z = 0; z < depth; z++)
-        {
-            seqC.setImage(0, z, new IcyBufferedImage(width, height, 1, DataType.UINT));
             seqLABELS.setImage(0, z, new IcyBufferedImage(width, height, 1, DataType.UINT));
-        }
         
-        seqOUT.beginUpdate();
+        // objects found so far in each channel (1 bit per voxel)
+        // NB: if no output sequence is given, the objects found in the other channels than the first
+        // are kept from one time point to the next (as in previous versions)
+        BitMask[] objects = new BitMask[channels];
+        for (int c = 0; c < channels; c++)
+            objects[c] = new BitMask(width, height, depth);
+        
+        CompactComponents extractor = new CompactComponents(width, height, depth);
         
         List<ConnectedComponent> components = new ArrayList<ConnectedComponent>();
         
         if (outputLabeledSequence)
         {
+            seqOUT.beginUpdate();
             for (int t = 0; t < frames; t++)
                 for (int z = 0; z < depth; z++)
                     seqOUT.setImage(t, z, new IcyBufferedImage(width, height, channels, DataType.UINT));
         }
-        else
-        {
-            for (int z = 0; z < depth; z++)
-                seqOUT.setImage(0, z, new IcyBufferedImage(width, height, channels, DataType.UINT));
-        }
         
-        for (int t = 0; t < frames; t++)
+        try
         {
-            int outT = (outputLabeledSequence ? t : 0);
-            
-            for (int c = 0; c < channels; c++)
+            for (int t = 0; t < frames; t++)
             {
-                for (int z = 0; z < depth; z++)
-                {
-                    Arrays.fill(seqC.getDataXYAsInt(0, z, 0), 0);
-                    if (outT < t) Arrays.fill(seqOUT.getDataXYAsInt(0, z, 0), 0);
-                }
-                
-                // 1) Copy current image in a new sequence
-                
-                ArrayUtil.arrayToArray(seqIN.getDataXYZ(t, c), seqLABELS.getDataXYZ(0, 0), seqIN.getDataType_().isSigned());
-                
-                // 2) Pre-filter the input data
-                
-                double scaleXZ = seqIN.getPixelSizeX() / seqIN.getPixelSizeZ();
-                
-                if (preFilter > 0)
-                {
-                    Kernels1D gaussianXY = Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(preFilter);
-                    Kernels1D gaussianZ = Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(preFilter * scaleXZ);
-                    Convolution1D.convolve(seqLABELS, gaussianXY.getData(), gaussianXY.getData(), depth > 1 ? gaussianZ.getData() : null);
-                }
-                if (Thread.currentThread().isInterrupted())
-                {
-                    System.out.println("[HK-Means] Process interrupted");
-                    return components;
-                }
-                
-                // 3) K-means on the raw data
-                
-                Thresholder.threshold(seqLABELS, 0, KMeans.computeKMeansThresholds(seqLABELS, 0, nbKMeansClasses, 255), true);
-                
-                // 4) Loop on each class in ascending order
-                
-                for (short currentClass = 1; currentClass < nbKMeansClasses; currentClass++)
+                for (int c = 0; c < channels; c++)
                 {
+                    if (outputLabeledSequence || c == 0) objects[c].clear();
+                    
+                    // 1) Copy current image in a new sequence
+                    
+                    ArrayUtil.arrayToArray(seqIN.getDataXYZ(t, c), seqLABELS.getDataXYZ(0, 0), seqIN.getDataType_().isSigned());
+                    
+                    // 2) Pre-filter the input data
+                    
+                    double scaleXZ = seqIN.getPixelSizeX() / seqIN.getPixelSizeZ();
+                    
+                    if (preFilter > 0)
+                    {
+                        Kernels1D gaussianXY = Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(preFilter);
+                        Kernels1D gaussianZ = Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(preFilter * scaleXZ);
+                        Convolution1D.convolve(seqLABELS, gaussianXY.getData(), gaussianXY.getData(), depth > 1 ? gaussianZ.getData() : null);
+                    }
                     if (Thread.currentThread().isInterrupted())
                     {
                         System.out.println("[HK-Means] Process interrupted");
                         return components;
                     }
                     
-                    // retrieve classes c and above as a binary image
-                    for (int z = 0; z < depth; z++)
-                    {
-                        int[] _labels = seqLABELS.getDataXYAsInt(0, z, 0);
-                        int[] _class = seqC.getDataXYAsInt(0, z, 0);
-                        int[] _out = seqOUT.getDataXYAsInt(outT, z, c);
-                        
-                        for (int i = 0; i < _labels.length; i++)
-                            if ((_labels[i] & 0xffff) >= currentClass && _out[i] == 0)
-                            {
-                                _class[i] = 1;
-                            }
-                    }
+                    // 3) K-means on the raw data
+                    
+                    Thresholder.threshold(seqLABELS, 0, KMeans.computeKMeansThresholds(seqLABELS, 0, nbKMeansClasses, 255), true);
                     
-                    // extract connected components on this current class
+                    int[][] _labels = seqLABELS.getDataXYZAsInt(0, 0);
+                    
+                    // 4) Loop on each class in ascending order
+                    
+                    for (short currentClass = 1; currentClass < nbKMeansClasses; currentClass++)
                     {
-                        Sequence seqLabels = new Sequence();
-                        List<ConnectedComponent> currentCC = ConnectedComponents.extractConnectedComponents(seqC, minSize, maxSize, seqLabels).get(0);
-                        seqC = seqLabels;
+                        if (Thread.currentThread().isInterrupted())
+                        {
+                            System.out.println("[HK-Means] Process interrupted");
+                            return components;
+                        }
+                        
+                        // extract the valid components of classes c and above (except where objects
+                        // have already been found), and add them to the objects found so far
+                        List<ConnectedComponent> currentCC = extractor.extract(_labels, currentClass, objects[c], minSize, maxSize, seqIN, t, c, minValue);
                         
                         // assign t/c value to all components
                         for (ConnectedComponent cc : currentCC)
@@ -172,52 +153,31 @@ public class HKMeans
                             cc.setC(c);
                         }
                         
-                        if (minValue == null)
-                        {
-                            components.addAll(currentCC);
-                        }
-                        else
-                        {
-                            int[][] _class_z_xy = seqC.getDataXYZAsInt(0, 0);
-                            
-                            for (ConnectedComponent cc : currentCC)
-                            {
-                                if (cc.computeMaxIntensity(seqIN)[c] < minValue)
-                                {
-                                    for (Point3i pt : cc)
-                                        _class_z_xy[pt.z][pt.y * width + pt.x] = 0;
-                                }
-                                else
-                                {
-                                    components.add(cc);
-                                }
-                            }
-                        }
-                    }
+                        components.addAll(currentCC);
+                    } // currentClass
                     
                     // store the final objects in the output image
-                    for (int z = 0; z < depth; z++)
+                    if (outputLabeledSequence)
                     {
-                        int[] _class = seqC.getDataXYAsInt(0, z, 0);
-                        int[] _out = seqOUT.getDataXYAsInt(outT, z, c);
-                        
-                        for (int i = 0; i < _out.length; i++)
+                        for (int z = 0; z < depth; z++)
                         {
-                            if (_class[i] != 0)
-                            {
-                                // store the valid pixel in the output
-                                _out[i] = 1;
-                                // erase the pixel from seqC for future classes
-                                _class[i] = 0;
-                            }
+                            int[] _out = seqOUT.getDataXYAsInt(t, z, c);
+                            for (int i = 0; i < _out.length; i++)
+                                _out[i] = objects[c].get(z, i) ? 1 : 0;
                         }
                     }
-                } // currentClass
+                }
+            }
+        }
+        finally
+        {
+            if (outputLabeledSequence)
+            {
+                seqOUT.endUpdate();
+                seqOUT.dataChanged();
             }
         }
         
-        seqOUT.endUpdate();
-        seqOUT.dataChanged();
         return components;
     }
     
@@ -269,164 +229,733 @@ public class HKMeans
      * @return a list of ROI extracted from the input sequence
      */
     public static List<ROI> hKMeans(Sequence seqIN, int t, int c, double preFilter, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity, EzStatus status)
+    {
+        return hKMeans(seqIN, t, c, preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, status, null);
+    }
+    
+    /**
+     * Performs a hierarchical K-Means segmentation on the input sequence, and returns all the
+     * detected objects
+     * 
+     * @param seqIN
+     *            the sequence to segment
+     * @param t
+     *            the time point to process (or -1 to process all time points)
+     * @param c
+     *            the channel to process (or -1 to process all channels)
+     * @param preFilter
+     *            the standard deviation of the Gaussian filter to apply before segmentation (0 for
+     *            none)
+     * @param nbKMeansClasses
+     *            the number of classes to divide the histogram (up to 255)
+     * @param minSize
+     *            the minimum size in pixels of the objects to segment
+     * @param maxSize
+     *            the maximum size in pixels of the objects to segment
+     * @param minIntensity
+     *            the minimum intensity value each object should have (in its corresponding channel)
+     * @param status
+     *            an {@link EzStatus} object to monitor the task progression (or <code>null</code>
+     *            if not available or not needed)
+     * @param thresholds
+     *            a table (sized after the input sequence) that will receive the K-Means thresholds
+     *            of each processed frame and channel, or <code>null</code> if not necessary
+     * @return a list of ROI extracted from the input sequence
+     */
+    public static List<ROI> hKMeans(Sequence seqIN, int t, int c, double preFilter, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity, EzStatus status,
+            ThresholdTable thresholds)
+    {
+        return hKMeans(seqIN, t, c, preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, status, thresholds, null);
+    }
+    
+    /**
+     * Performs a hierarchical K-Means segmentation on the input sequence, and returns all the
+     * detected objects
+     * 
+     * @param seqIN
+     *            the sequence to segment
+     * @param t
+     *            the time point to process (or -1 to process all time points)
+     * @param c
+     *            the channel to process (or -1 to process all channels)
+     * @param preFilter
+     *            the standard deviation of the Gaussian filter to apply before segmentation (0 for
+     *            none)
+     * @param nbKMeansClasses
+     *            the number of classes to divide the histogram (up to 255)
+     * @param minSize
+     *            the minimum size in pixels of the objects to segment
+     * @param maxSize
+     *            the maximum size in pixels of the objects to segment
+     * @param minIntensity
+     *            the minimum intensity value each object should have (in its corresponding channel)
+     * @param status
+     *            an {@link EzStatus} object to monitor the task progression (or <code>null</code>
+     *            if not available or not needed)
+     * @param thresholds
+     *            a table (sized after the input sequence) that will receive the K-Means thresholds
+     *            of each processed frame and channel, or <code>null</code> if not necessary
+     * @param measurements
+     *            an empty table that will receive the measurements of each extracted object (in the
+     *            same order as the returned list), or <code>null</code> if not necessary
+     * @return a list of ROI extracted from the input sequence
+     */
+    public static List<ROI> hKMeans(Sequence seqIN, int t, int c, double preFilter, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity, EzStatus status,
+            ThresholdTable thresholds, ObjectMeasurements measurements)
+    {
+        // frames are processed one after the other, as in previous versions (parallel processing
+        // is requested explicitly via an execution plan, see MemoryPlanner)
+        ExecutionPlan plan = new ExecutionPlan(1, MemoryPlanner.estimateFrameMemory(seqIN, preFilter, 1), MemoryPlanner.getAvailableMemory());
+        
+        return hKMeans(seqIN, t, c, preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, status, thresholds, measurements, plan);
+    }
+    
+    /**
+     * Performs a hierarchical K-Means segmentation on the input sequence, and returns all the
+     * detected objects
+     *
+     * @param seqIN
+     *            the sequence to segment
+     * @param t
+     *            the time point to process (or -1 to process all time points)
+     * @param c
+     *            the channel to process (or -1 to process all channels)
+     * @param preFilter
+     *            the standard deviation of the Gaussian filter to apply before segmentation (0 for
+     *            none)
+     * @param nbKMeansClasses
+     *            the number of classes to divide the histogram (up to 255)
+     * @param minSize
+     *            the minimum size in pixels of the objects to segment
+     * @param maxSize
+     *            the maximum size in pixels of the objects to segment
+     * @param minIntensity
+     *            the minimum intensity value each object should have (in its corresponding channel)
+     * @param status
+     *            an {@link EzStatus} object to monitor the task progression (or <code>null</code>
+     *            if not available or not needed)
+     * @param thresholds
+     *            a table (sized after the input sequence) that will receive the K-Means thresholds
+     *            of each processed frame and channel, or <code>null</code> if not necessary
+     * @param measurements
+     *            an empty table that will receive the measurements of each extracted object (in the
+     *            same order as the returned list), or <code>null</code> if not necessary
+     * @param plan
+     *            the execution plan (number of threads, thresholding and extraction modes), e.g. as
+     *            given by {@link MemoryPlanner#plan(Sequence, int, int, double, int, long)}. The
+     *            extracted objects do not depend on the plan
+     * @return a list of ROI extracted from the input sequence
+     */
+    public static List<ROI> hKMeans(final Sequence seqIN, int t, int c, final double preFilter, final byte nbKMeansClasses, final int minSize, final int maxSize,
+            final Double minIntensity, final EzStatus status, final ThresholdTable thresholds, ObjectMeasurements measurements, final ExecutionPlan plan)
     {
         List<ROI> rois = new ArrayList<ROI>();
         
         int minT = t >= 0 ? t : 0, maxT = t >= 0 ? t : seqIN.getSizeT() - 1;
         int minC = c >= 0 ? c : 0, maxC = c >= 0 ? c : seqIN.getSizeC() - 1;
         
-        final int width = seqIN.getSizeX();
-        final int height = seqIN.getSizeY();
-        final int depth = seqIN.getSizeZ();
-        final DataType dataType = seqIN.getDataType_();
+        // Split the sequence into independent (T, C) work units. Each unit produces its own list of
+        // ROI and measurements, which are gathered in order at the end
         
-        // Expected memory overhead (in bytes): 3 x width x height x depth
-        Sequence allClasses = new Sequence("Labels in " + seqIN.getName());
-        Sequence currentClass = new Sequence("Current class");
-        Sequence finalBinaryOutput = new Sequence("Objects found in " + seqIN.getName());
+        final List<int[]> units = new ArrayList<int[]>();
+        final List<List<ROI>> unitROIs = new ArrayList<List<ROI>>();
+        final List<ObjectMeasurements> unitMeasurements = new ArrayList<ObjectMeasurements>();
         
-        for (int z = 0; z < depth; z++)
+        for (t = minT; t <= maxT; t++)
+            for (c = minC; c <= maxC; c++)
+            {
+                units.add(new int[] { t, c });
+                unitROIs.add(new ArrayList<ROI>());
+                unitMeasurements.add(new ObjectMeasurements());
+            }
+        
+        int nbThreads = Math.min(plan.getNbThreads(), units.size());
+        
+        // in temporal mode, the time points of each channel depend on each other and are processed
+        // sequentially (only channels are processed in parallel)
+        final TemporalKMeans[] temporalKMeans = plan.isTemporal() ? new TemporalKMeans[seqIN.getSizeC()] : null;
+        if (temporalKMeans != null)
         {
-            currentClass.setImage(0, z, new IcyBufferedImage(width, height, 1, DataType.UBYTE));
-            allClasses.setImage(0, z, new IcyBufferedImage(width, height, 1, dataType));
-            finalBinaryOutput.setImage(0, z, new IcyBufferedImage(width, height, 1, DataType.UBYTE));
+            for (c = minC; c <= maxC; c++)
+                temporalKMeans[c] = new TemporalKMeans(nbKMeansClasses);
+            nbThreads = Math.min(nbThreads, maxC - minC + 1);
         }
-        // NB: The final (binary) output could be given to the user in addition to the extracted ROI
         
-        for (t = minT; t <= maxT; t++)
+        // number of units (in order) whose results are complete
+        int nbCompleted = 0;
+        
+        if (nbThreads <= 1)
         {
-            if (status != null && maxT - minT > 0)
-            {
-                status.setMessage("Processing T=" + t);
-                status.setCompletion((t + 1) / (double) (maxT - minT + 1));
-            }
+            Workspace workspace = new Workspace(seqIN, plan);
             
-            for (c = minC; c <= maxC; c++)
+            for (int[] unit : units)
             {
-                if (status != null && maxC - minC > 0)
+                if (status != null && units.size() > 1)
                 {
-                    status.setMessage("Processing T=" + t + ", C=" + c);
+                    status.setMessage("Processing T=" + unit[0] + ", C=" + unit[1]);
                 }
                 
-                // 0) reset temporary buffers if necessary
-                if (t > minT || c > minC) for (int z = 0; z < depth; z++)
-                {
-                    Arrays.fill(finalBinaryOutput.getDataXYAsByte(0, z, 0), (byte) 0);
-                    Arrays.fill(currentClass.getDataXYAsByte(0, z, 0), (byte) 0);
-                }
-                
-                // 1) Copy current frame in a new sequence
-                
-                ArrayUtil.arrayToArray(seqIN.getDataXYZ(t, c), allClasses.getDataXYZ(0, 0), dataType.isSigned());
-                
-                // 2) Gaussian filtering
+                boolean completed = hKMeans(seqIN, unit[0], unit[1], preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, status, thresholds,
+                        temporalKMeans == null ? null : temporalKMeans[unit[1]], workspace, unitROIs.get(nbCompleted), unitMeasurements.get(nbCompleted));
                 
-                if (preFilter > 0) try
-                {
-                    double scaleXZ = seqIN.getPixelSizeX() / seqIN.getPixelSizeZ();
-                    Sequence gaussianXY = Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(preFilter).toSequence();
-                    Sequence gaussianZ = depth == 1 ? null : Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(preFilter * scaleXZ).toSequence();
-                    Convolution1D.convolve(allClasses, gaussianXY, gaussianXY, depth > 1 ? gaussianZ : null);
-                }
-                catch (ConvolutionException e)
+                nbCompleted++;
+                if (!completed) break;
+            }
+        }
+        else
+        {
+            // one workspace per thread
+            final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>()
+            {
+                @Override
+                protected Workspace initialValue()
                 {
-                    System.err.println("[HK-Means] Warning: couldn't pre-filter. Skipping...");
+                    return new Workspace(seqIN, plan);
                 }
+            };
+            
+            ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(units.size());
+            
+            // in temporal mode, each channel waits for its previous time point
+            final int nbChannels = maxC - minC + 1;
+            
+            for (int i = 0; i < units.size(); i++)
+            {
+                final int unit = i;
+                final Future<Boolean> dependency = temporalKMeans != null && unit >= nbChannels ? results.get(unit - nbChannels) : null;
                 
-                // 2) apply a multi-class K-means on the raw data
-                
-                double[] thresholds = KMeans.computeKMeansThresholds(allClasses, 0, nbKMeansClasses, 255);
-                Thresholder.threshold(allClasses, 0, thresholds, true);
-                
-                // 3) Loop on each class in ascending order
-                
-                for (short currentClassID = 1; currentClassID < nbKMeansClasses; currentClassID++)
+                results.add(executor.submit(new Callable<Boolean>()
                 {
-                    if (Thread.currentThread().isInterrupted()) return rois;
-                    
-                    if (status != null)
+                    @Override
+                    public Boolean call() throws Exception
                     {
-                        status.setCompletion(currentClassID / (double) nbKMeansClasses);
-                        status.setMessage("Extracting class " + currentClassID + "/" + (nbKMeansClasses - 1));
+                        if (dependency != null && !dependency.get()) return false;
+                        
+                        int[] tc = units.get(unit);
+                        return hKMeans(seqIN, tc[0], tc[1], preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, null, thresholds,
+                                temporalKMeans == null ? null : temporalKMeans[tc[1]], workspaces.get(), unitROIs.get(unit), unitMeasurements.get(unit));
                     }
+                }));
+            }
+            executor.shutdown();
+            
+            try
+            {
+                for (Future<Boolean> result : results)
+                {
+                    boolean completed = result.get();
+                    nbCompleted++;
                     
-                    // 3.a) retrieve classes c and above as a binary image
-                    // (except where objects have already been found)
-                    
-                    for (int z = 0; z < depth; z++)
+                    if (status != null)
                     {
-                        Object _allClasses = allClasses.getDataXY(0, z, 0);
-                        byte[] _currentClass = currentClass.getDataXYAsByte(0, z, 0);
-                        byte[] _outputMask = finalBinaryOutput.getDataXYAsByte(0, z, 0);
-                        
-                        int offset = 0;
-                        for (int j = 0; j < height; j++)
-                            for (int i = 0; i < width; i++, offset++)
-                                if (_outputMask[offset] == 0 && Array1DUtil.getValue(_allClasses, offset, dataType) >= currentClassID)
-                                {
-                                    _currentClass[offset] = 1;
-                                }
-                                else
-                                {
-                                    _currentClass[offset] = 0;
-                                }
+                        status.setMessage("Processed " + nbCompleted + "/" + units.size() + " frames");
+                        status.setCompletion(nbCompleted / (double) units.size());
                     }
                     
-                    // 3.b) extract labels on this current class
-                    
-                    List<ROI> currentROIs = LabelExtractor.extractLabels(currentClass, 0, 0, ExtractionType.ANY_LABEL_VS_BACKGROUND, 0);
-                    
-                    // Discard ROIs violating the size or intensity constraints
-                    for (int i = 0; i < currentROIs.size(); i++)
-                    {
-                        ROI currentROI = currentROIs.get(i);
-                        
-                        double size = currentROI.getNumberOfPoints();
-                        if (size < minSize || size > maxSize)
+                    if (!completed) break;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e)
+            {
+                executor.shutdownNow();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        
+        for (int i = 0; i < nbCompleted; i++)
+        {
+            rois.addAll(unitROIs.get(i));
+            if (measurements != null) measurements.append(unitMeasurements.get(i));
+        }
+        
+        return rois;
+    }
+    
+    /**
+     * Performs a hierarchical K-Means segmentation on a single frame and channel of the input
+     * sequence
+     *
+     * @return <code>false</code> if the process was interrupted, <code>true</code> otherwise
+     */
+    private static boolean hKMeans(Sequence seqIN, int t, int c, double preFilter, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity, EzStatus status,
+            ThresholdTable thresholds, TemporalKMeans temporalKMeans, Workspace workspace, List<ROI> rois, ObjectMeasurements measurements)
+    {
+        final int width = seqIN.getSizeX();
+        final int height = seqIN.getSizeY();
+        final int depth = seqIN.getSizeZ();
+        final DataType dataType = seqIN.getDataType_();
+        
+        // 0) reset temporary buffers if necessary
+        workspace.reset();
+        
+        // 1) Copy current frame in the (per-thread) frame buffer
+        
+        workspace.begin();
+        
+        final Sequence allClasses = workspace.allClasses;
+        ArrayUtil.arrayToArray(seqIN.getDataXYZ(t, c), allClasses.getDataXYZ(0, 0), dataType.isSigned());
+        
+        workspace.end(Stage.COPY);
+        
+        // 2) Gaussian filtering
+        
+        workspace.begin();
+        
+        if (preFilter > 0) try
+        {
+            double scaleXZ = seqIN.getPixelSizeX() / seqIN.getPixelSizeZ();
+            Sequence gaussianXY = Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(preFilter).toSequence();
+            Sequence gaussianZ = depth == 1 ? null : Kernels1D.CUSTOM_GAUSSIAN.createGaussianKernel1D(preFilter * scaleXZ).toSequence();
+            Convolution1D.convolve(allClasses, gaussianXY, gaussianXY, depth > 1 ? gaussianZ : null);
+        }
+        catch (ConvolutionException e)
+        {
+            System.err.println("[HK-Means] Warning: couldn't pre-filter. Skipping...");
+        }
+        
+        workspace.end(Stage.FILTER);
+        
+        // 2) apply a multi-class K-means on the raw data
+        // (seeded with the previous time point in temporal mode, on a subsample if requested unless
+        // the sampled thresholds are unstable)
+        
+        workspace.begin();
+        
+        final int stride = workspace.plan.getSamplingStride();
+        double[] frameThresholds = HistogramKMeans.computeThresholds(allClasses, nbKMeansClasses, stride, temporalKMeans, thresholds, t, c);
+        
+        Thresholder.threshold(allClasses, 0, frameThresholds, true);
+        
+        workspace.end(Stage.THRESHOLDS);
+        
+        // 3) in coarse-to-fine mode, extract objects within the candidate regions only
+        
+        workspace.begin();
+        
+        if (workspace.plan.getPyramidFactor() > 1)
+        {
+            Object[] classes = new Object[depth];
+            for (int z = 0; z < depth; z++)
+                classes[z] = allClasses.getDataXY(0, z, 0);
+            
+            CandidateRegions candidates = CandidateRegions.find(classes, width, height, workspace.plan.getPyramidFactor(), minSize);
+            
+            // refining labels the bounds of each region, which is only worth it on a small area
+            if (candidates.getProcessedArea() <= CandidateRegions.MAX_COVERAGE * width * height)
+            {
+                if (workspace.plan.getProfile() != null) workspace.plan.getProfile().countRefinedFrame();
+                
+                boolean completed = hKMeans(seqIN, t, c, nbKMeansClasses, minSize, maxSize, minIntensity, status, classes, candidates, workspace, rois, measurements);
+                workspace.end(Stage.EXTRACTION);
+                return completed;
+            }
+        }
+        
+        // 4) Loop on each class in ascending order
+        
+        for (short currentClassID = 1; currentClassID < nbKMeansClasses; currentClassID++)
+        {
+            if (Thread.currentThread().isInterrupted()) return false;
+            
+            if (status != null)
+            {
+                status.setCompletion(currentClassID / (double) nbKMeansClasses);
+                status.setMessage("Extracting class " + currentClassID + "/" + (nbKMeansClasses - 1));
+            }
+            
+            // 4.a) retrieve classes c and above as a binary image
+            // (except where objects have already been found)
+            
+            for (int z = 0; z < depth; z++)
+            {
+                byte[] _currentClass = workspace.currentClass.getDataXYAsByte(0, z, 0);
+                Object _allClasses = allClasses.getDataXY(0, z, 0);
+                byte[] _outputMask = workspace.finalBinaryOutput.getDataXYAsByte(0, z, 0);
+                
+                int offset = 0;
+                for (int j = 0; j < height; j++)
+                    for (int i = 0; i < width; i++, offset++)
+                        if (_outputMask[offset] == 0 && Array1DUtil.getValue(_allClasses, offset, dataType) >= currentClassID)
                         {
-                            currentROIs.remove(i--);
-                            continue;
+                            _currentClass[offset] = 1;
                         }
-                        
-                        double maxIntensity = ROIMaxIntensityDescriptor.computeMaxIntensity(currentROI, seqIN);
-                        
-                        if (minIntensity != null && maxIntensity < minIntensity)
+                        else
                         {
-                            currentROIs.remove(i--);
-                            continue;
+                            _currentClass[offset] = 0;
                         }
-                    }
+            }
+            
+            // 4.b) extract labels on this current class
+            
+            List<ROI> currentROIs = LabelExtractor.extractLabels(workspace.currentClass, 0, 0, ExtractionType.ANY_LABEL_VS_BACKGROUND, 0);
+            
+            addObjects(seqIN, t, c, currentClassID, minSize, maxSize, minIntensity, currentROIs, workspace, rois, measurements);
+            
+        } // currentClass
+        
+        workspace.end(Stage.EXTRACTION);
+        
+        return true;
+    }
+    
+    /**
+     * Performs the hierarchical extraction of a classified frame within each candidate region
+     * separately (coarse-to-fine mode). Since each object lies within a single candidate region
+     * (see {@link CandidateRegions}), the extracted objects are the same as when processing the
+     * entire frame at once, but are ordered by region first (then by class). Each region is copied
+     * in turn to region buffers of its own size (see {@link Workspace#getRegionClass(int, int)}),
+     * so that the area labeled for each class is the area of the region bounds, whatever the size
+     * of the other regions
+     *
+     * @return <code>false</code> if the process was interrupted, <code>true</code> otherwise
+     */
+    private static boolean hKMeans(Sequence seqIN, int t, int c, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity, EzStatus status, Object[] classes,
+            CandidateRegions candidates, Workspace workspace, List<ROI> rois, ObjectMeasurements measurements)
+    {
+        final int width = seqIN.getSizeX();
+        final int depth = seqIN.getSizeZ();
+        final int factor = candidates.getFactor();
+        final int coarseWidth = candidates.getCoarseWidth();
+        
+        for (int region = 0; region < candidates.getCount(); region++)
+        {
+            if (status != null)
+            {
+                status.setCompletion(region / (double) candidates.getCount());
+                status.setMessage("Refining region " + (region + 1) + "/" + candidates.getCount());
+            }
+            
+            int[] bounds = candidates.getBounds(region);
+            final int minX = bounds[0], minY = bounds[1];
+            final int regionWidth = bounds[2] - minX + 1;
+            final int regionHeight = bounds[3] - minY + 1;
+            
+            final Sequence currentClass = workspace.getRegionClass(regionWidth, regionHeight);
+            
+            // copy the classes of the region (0 outside its blocks)
+            
+            for (int z = 0; z < depth; z++)
+            {
+                int[] _labels = candidates.getLabels(z);
+                byte[] _regionClasses = workspace.regionClasses[z];
+                
+                for (int j = 0; j < regionHeight; j++)
+                {
+                    int y = minY + j;
+                    int regionOffset = j * regionWidth;
+                    int coarseOffset = (y / factor) * coarseWidth;
                     
-                    if (currentROIs.isEmpty()) continue;
+                    readClasses(classes[z], y * width + minX, _regionClasses, regionOffset, regionWidth);
                     
-                    // All remaining ROIs are now valid
-                    rois.addAll(currentROIs);
+                    for (int i = 0; i < regionWidth; i++, regionOffset++)
+                        if (_labels[coarseOffset + (minX + i) / factor] != region + 1) _regionClasses[regionOffset] = 0;
+                }
+            }
+            
+            for (short currentClassID = 1; currentClassID < nbKMeansClasses; currentClassID++)
+            {
+                if (Thread.currentThread().isInterrupted()) return false;
+                
+                // retrieve classes c and above within the region as a binary image
+                // (except where objects have already been found)
+                
+                for (int z = 0; z < depth; z++)
+                {
+                    byte[] _regionClasses = workspace.regionClasses[z];
+                    byte[] _currentClass = currentClass.getDataXYAsByte(0, z, 0);
+                    byte[] _outputMask = workspace.finalBinaryOutput.getDataXYAsByte(0, z, 0);
                     
-                    // store the final objects in the output image
-                    for (ROI currentROI : currentROIs)
-                        DataIteratorUtil.set(new SequenceDataIterator(finalBinaryOutput, currentROI), 1);
-                        
-                    // Finally, set the proper T / C and color
-                    for (ROI currentROI : currentROIs)
+                    for (int j = 0; j < regionHeight; j++)
                     {
-                        if (currentROI instanceof ROI2D)
-                        {
-                            ((ROI2D) currentROI).setC(c);
-                            ((ROI2D) currentROI).setT(t);
-                        }
-                        else if (currentROI instanceof ROI3D)
+                        int regionOffset = j * regionWidth;
+                        int offset = (minY + j) * width + minX;
+                        
+                        for (int i = 0; i < regionWidth; i++, offset++, regionOffset++)
                         {
-                            ((ROI3D) currentROI).setC(c);
-                            ((ROI3D) currentROI).setT(t);
+                            _currentClass[regionOffset] = (byte) (_regionClasses[regionOffset] >= currentClassID && _outputMask[offset] == 0 ? 1 : 0);
                         }
-                        currentROI.setColor(seqIN.getColorMap(c).getDominantColor().brighter());
                     }
-                    
-                } // currentClass
+                }
+                
+                // extract labels on this current class, and move them back to the frame
+                
+                List<ROI> currentROIs = LabelExtractor.extractLabels(currentClass, 0, 0, ExtractionType.ANY_LABEL_VS_BACKGROUND, 0);
+                
+                for (ROI currentROI : currentROIs)
+                {
+                    if (currentROI instanceof ROI2D)
+                    {
+                        ((ROI2D) currentROI).translate(minX, minY);
+                    }
+                    else if (currentROI instanceof ROI3D)
+                    {
+                        ((ROI3D) currentROI).translate(minX, minY, 0);
+                    }
+                }
+                
+                addObjects(seqIN, t, c, currentClassID, minSize, maxSize, minIntensity, currentROIs, workspace, rois, measurements);
             }
         }
         
-        return rois;
+        return true;
+    }
+    
+    /**
+     * Reads consecutive class values (as thresholded in the frame buffer) directly from the
+     * specified array
+     * 
+     * @param data
+     *            the class array of a slice (of any primitive type)
+     * @param offset
+     *            the offset of the first value to read
+     * @param classes
+     *            the array receiving the classes
+     * @param classOffset
+     *            the offset of the first class to write
+     * @param length
+     *            the number of values to read
+     */
+    static void readClasses(Object data, int offset, byte[] classes, int classOffset, int length)
+    {
+        if (data instanceof byte[])
+        {
+            System.arraycopy(data, offset, classes, classOffset, length);
+        }
+        else if (data instanceof short[])
+        {
+            short[] array = (short[]) data;
+            for (int i = 0; i < length; i++)
+                classes[classOffset + i] = (byte) array[offset + i];
+        }
+        else if (data instanceof int[])
+        {
+            int[] array = (int[]) data;
+            for (int i = 0; i < length; i++)
+                classes[classOffset + i] = (byte) array[offset + i];
+        }
+        else if (data instanceof long[])
+        {
+            long[] array = (long[]) data;
+            for (int i = 0; i < length; i++)
+                classes[classOffset + i] = (byte) array[offset + i];
+        }
+        else if (data instanceof float[])
+        {
+            float[] array = (float[]) data;
+            for (int i = 0; i < length; i++)
+                classes[classOffset + i] = (byte) array[offset + i];
+        }
+        else if (data instanceof double[])
+        {
+            double[] array = (double[]) data;
+            for (int i = 0; i < length; i++)
+                classes[classOffset + i] = (byte) array[offset + i];
+        }
+        else throw new IllegalArgumentException("Unsupported array type: " + data.getClass().getSimpleName());
     }
     
-}
+    /**
+     * Discards the objects violating the size or intensity constraints, and adds the remaining ones
+     * to the list of objects (and to the objects found so far). As in previous versions, the
+     * intensity constraint applies to the maximum intensity of the object over all time points and
+     * channels of the input sequence (the ROIs have no T / C yet), while the measurements are
+     * taken in the object's own frame and channel (see
+     * {@link ExecutionPlan#setIntensityReference(Sequence)})
+     */
+    private static void addObjects(Sequence seqIN, int t, int c, short currentClassID, int minSize, int maxSize, Double minIntensity, List<ROI> currentROIs,
+            Workspace workspace, List<ROI> rois, ObjectMeasurements measurements)
+    {
+        Sequence intensityReference = workspace.plan.getIntensityReference();
+        if (intensityReference == null) intensityReference = seqIN;
+        
+        // Discard ROIs violating the size or intensity constraints
+        for (int i = 0; i < currentROIs.size(); i++)
+        {
+            ROI currentROI = currentROIs.get(i);
+            
+            double size = currentROI.getNumberOfPoints();
+            if (size < minSize || size > maxSize)
+            {
+                currentROIs.remove(i--);
+                continue;
+            }
+            
+            // measure the object (intensity, position...) in a single pass
+            int row = measurements.measure(currentROI, seqIN, t, c, currentClassID);
+            
+            // the maximum in the object's own frame is a lower bound of the maximum over all frames
+            if (minIntensity != null && measurements.getMaxIntensity(row) < minIntensity
+                    && ROIMaxIntensityDescriptor.computeMaxIntensity(currentROI, intensityReference) < minIntensity)
+            {
+                measurements.removeLastRow();
+                currentROIs.remove(i--);
+                continue;
+            }
+        }
+        
+        if (currentROIs.isEmpty()) return;
+        
+        // All remaining ROIs are now valid
+        rois.addAll(currentROIs);
+        
+        // store the final objects in the output image
+        for (ROI currentROI : currentROIs)
+            workspace.setUsed(currentROI);
+        
+        // Finally, set the proper T / C and color
+        for (ROI currentROI : currentROIs)
+        {
+            if (currentROI instanceof ROI2D)
+            {
+                ((ROI2D) currentROI).setC(c);
+                ((ROI2D) currentROI).setT(t);
+            }
+            else if (currentROI instanceof ROI3D)
+            {
+                ((ROI3D) currentROI).setC(c);
+                ((ROI3D) currentROI).setT(t);
+            }
+            currentROI.setColor(seqIN.getColorMap(c).getDominantColor().brighter());
+        }
+    }
+    
+    /**
+     * Temporary buffers used to segment a single frame
+     */
+    private static class Workspace
+    {
+        final ExecutionPlan plan;
+        
+        /**
+         * Copy of the current frame, then its classes (reused for every frame processed by the
+         * thread owning this workspace)
+         */
+        final Sequence allClasses;
+        
+        final Sequence currentClass;
+        
+        /**
+         * Objects found so far
+         */
+        final Sequence finalBinaryOutput;
+        
+        /**
+         * Current class of a candidate region (coarse-to-fine mode only, sized to the current
+         * region)
+         */
+        private Sequence regionClass = null;
+        
+        /**
+         * Classes of a candidate region, slice by slice and row by row (coarse-to-fine mode only,
+         * grown to the largest region processed so far)
+         */
+        byte[][] regionClasses = null;
+        
+        private boolean used = false;
+        
+        private long[] stageToken;
+        
+        Workspace(Sequence seqIN, ExecutionPlan plan)
+        {
+            final int width = seqIN.getSizeX();
+            final int height = seqIN.getSizeY();
+            final int depth = seqIN.getSizeZ();
+            
+            this.plan = plan;
+            
+            currentClass = new Sequence("Current class");
+            allClasses = new Sequence("Labels in " + seqIN.getName());
+            for (int z = 0; z < depth; z++)
+            {
+                currentClass.setImage(0, z, new IcyBufferedImage(width, height, 1, DataType.UBYTE));
+                allClasses.setImage(0, z, new IcyBufferedImage(width, height, 1, seqIN.getDataType_()));
+            }
+            
+            finalBinaryOutput = new Sequence("Objects found in " + seqIN.getName());
+            for (int z = 0; z < depth; z++)
+                finalBinaryOutput.setImage(0, z, new IcyBufferedImage(width, height, 1, DataType.UBYTE));
+            // NB: The final (binary) output could be given to the user in addition to the extracted
+            // ROI
+        }
+        
+        /**
+         * Marks the beginning of a stage (if the segmentation is profiled)
+         */
+        void begin()
+        {
+            if (plan.getProfile() != null) stageToken = plan.getProfile().begin();
+        }
+        
+        /**
+         * Marks the end of a stage (if the segmentation is profiled)
+         */
+        void end(Stage stage)
+        {
+            if (plan.getProfile() != null) plan.getProfile().end(stage, stageToken);
+        }
+        
+        /**
+         * Prepares the region buffers for a region of the specified size, and returns the current
+         * class buffer of the region (which is allocated again whenever the size changes, since
+         * labeling always processes the entire buffer). The region classes are stored in the first
+         * <code>regionWidth x regionHeight</code> elements of {@link #regionClasses}
+         */
+        Sequence getRegionClass(int regionWidth, int regionHeight)
+        {
+            final int depth = currentClass.getSizeZ();
+            final int regionSize = regionWidth * regionHeight;
+            
+            if (regionClasses == null || regionClasses[0].length < regionSize) regionClasses = new byte[depth][regionSize];
+            
+            if (regionClass == null)
+            {
+                regionClass = new Sequence("Current class (region)");
+            }
+            else if (regionClass.getSizeX() == regionWidth && regionClass.getSizeY() == regionHeight)
+            {
+                return regionClass;
+            }
+            else
+            {
+                regionClass.removeAllImages();
+            }
+            
+            for (int z = 0; z < depth; z++)
+                regionClass.setImage(0, z, new IcyBufferedImage(regionWidth, regionHeight, 1, DataType.UBYTE));
+            
+            return regionClass;
+        }
+        
+        /**
+         * Adds the specified object to the objects found so far
+         */
+        void setUsed(ROI roi)
+        {
+            DataIteratorUtil.set(new SequenceDataIterator(finalBinaryOutput, roi), 1);
+        }
+        
+        /**
+         * Clears the buffers if they have been used already
+         */
+        void reset()
+        {
+            if (used)
+            {
+                for (int z = 0; z < currentClass.getSizeZ(); z++)
+                {
+                    Arrays.fill(currentClass.getDataXYAsByte(0, z, 0), (byte) 0);
+                    Arrays.fill(finalBinaryOutput.getDataXYAsByte(0, z, 0), (byte) 0);
+                }
+            }
+            used = true;
+        }
+    }
+}
\ No newline at end of file
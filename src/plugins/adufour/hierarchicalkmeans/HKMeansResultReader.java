@@ -0,0 +1,459 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.BooleanMask3D;
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import icy.type.rectangle.Rectangle3D;
+import plugins.kernel.roi.roi2d.ROI2DArea;
+import plugins.kernel.roi.roi3d.ROI3DArea;
+
+/**
+ * Reads HK-Means results written by {@link HKMeansResultWriter}. The file is memory-mapped, such
+ * that individual objects can be accessed randomly without reading (or parsing) the entire file.
+ * Files larger than {@link HKMeansResultWriter#MAX_FILE_SIZE} bytes are not supported. The
+ * mapping is released when the reader is closed (objects cannot be accessed afterwards).
+ * 
+ * @author Alexandre Dufour
+ */
+public class HKMeansResultReader implements Closeable
+{
+    private final RandomAccessFile raf;
+    
+    private MappedByteBuffer buffer;
+    
+    private final int sizeX, sizeY, sizeZ, sizeT, sizeC;
+    
+    private final double preFilter;
+    
+    private final int nbKMeansClasses;
+    
+    private final int minSize, maxSize;
+    
+    private final Double minIntensity;
+    
+    private final ThresholdTable thresholds;
+    
+    private final int objectCount;
+    
+    private final int objectTable;
+    
+    private final int recordSize;
+    
+    private final boolean hasColors;
+    
+    /**
+     * Opens the specified result file
+     * 
+     * @param file
+     *            a file written by {@link HKMeansResultWriter}
+     * @throws IOException
+     *             if the file cannot be read or is not a valid HK-Means result file
+     */
+    public HKMeansResultReader(File file) throws IOException
+    {
+        raf = new RandomAccessFile(file, "r");
+        
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > HKMeansResultWriter.MAX_FILE_SIZE) throw new IOException("HK-Means result files larger than 2GB are not supported");
+            
+            buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            
+            if (buffer.getInt(0) != HKMeansResultWriter.MAGIC) throw new IOException(file.getPath() + " is not an HK-Means result file");
+            
+            // version 1 files have neither ROI colors nor threshold flags
+            int version = buffer.getInt(4);
+            if (version != 1 && version != HKMeansResultWriter.VERSION) throw new IOException("Unsupported HK-Means result file version: " + version);
+            hasColors = version > 1;
+            recordSize = hasColors ? HKMeansResultWriter.RECORD_SIZE : HKMeansResultWriter.RECORD_SIZE_V1;
+            
+            objectCount = buffer.getInt(HKMeansResultWriter.OBJECT_COUNT_POSITION);
+            objectTable = (int) buffer.getLong(HKMeansResultWriter.OBJECT_TABLE_POSITION);
+            
+            buffer.position(20);
+            sizeX = buffer.getInt();
+            sizeY = buffer.getInt();
+            sizeZ = buffer.getInt();
+            sizeT = buffer.getInt();
+            sizeC = buffer.getInt();
+            preFilter = buffer.getDouble();
+            nbKMeansClasses = buffer.getInt();
+            minSize = buffer.getInt();
+            maxSize = buffer.getInt();
+            double minValue = buffer.getDouble();
+            minIntensity = Double.isNaN(minValue) ? null : minValue;
+            
+            thresholds = new ThresholdTable(sizeT, sizeC);
+            int nbEntries = buffer.getInt();
+            for (int i = 0; i < nbEntries; i++)
+            {
+                int t = buffer.getInt();
+                int c = buffer.getInt();
+                int flags = hasColors ? buffer.getInt() : 0;
+                double[] values = new double[buffer.getInt()];
+                for (int n = 0; n < values.length; n++)
+                    values[n] = buffer.getDouble();
+                thresholds.setThresholds(t, c, values, (flags & HKMeansResultWriter.SAMPLED) != 0);
+                thresholds.setAbruptChange(t, c, (flags & HKMeansResultWriter.ABRUPT_CHANGE) != 0);
+            }
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+    
+    public int getSizeX()
+    {
+        return sizeX;
+    }
+    
+    public int getSizeY()
+    {
+        return sizeY;
+    }
+    
+    public int getSizeZ()
+    {
+        return sizeZ;
+    }
+    
+    public int getSizeT()
+    {
+        return sizeT;
+    }
+    
+    public int getSizeC()
+    {
+        return sizeC;
+    }
+    
+    /**
+     * @return the standard deviation of the Gaussian pre-filter used for the segmentation
+     */
+    public double getPreFilter()
+    {
+        return preFilter;
+    }
+    
+    /**
+     * @return the number of classes used for the segmentation
+     */
+    public int getNbKMeansClasses()
+    {
+        return nbKMeansClasses;
+    }
+    
+    /**
+     * @return the minimum object size used for the segmentation
+     */
+    public int getMinSize()
+    {
+        return minSize;
+    }
+    
+    /**
+     * @return the maximum object size used for the segmentation
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+    
+    /**
+     * @return the minimum object intensity used for the segmentation, or <code>null</code> if
+     *         none was used
+     */
+    public Double getMinIntensity()
+    {
+        return minIntensity;
+    }
+    
+    /**
+     * @return the K-Means thresholds computed during the segmentation (including whether they were
+     *         sampled, and the abrupt changes of intensity distribution)
+     */
+    public ThresholdTable getThresholds()
+    {
+        return thresholds;
+    }
+    
+    /**
+     * @return the number of objects stored in the file
+     */
+    public int getObjectCount()
+    {
+        return objectCount;
+    }
+    
+    private int record(int object)
+    {
+        if (buffer == null) throw new IllegalStateException("The HK-Means result file is closed");
+        if (object < 0 || object >= objectCount) throw new IndexOutOfBoundsException("Invalid object index: " + object);
+        
+        return objectTable + object * recordSize;
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the time point of the specified object
+     */
+    public int getT(int object)
+    {
+        return buffer.getInt(record(object));
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the channel of the specified object
+     */
+    public int getC(int object)
+    {
+        return buffer.getInt(record(object) + 4);
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the size (in pixels) of the specified object
+     */
+    public int getSize(int object)
+    {
+        return buffer.getInt(record(object) + 8);
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the K-Means class at which the specified object was extracted (or -1 if unknown)
+     */
+    public int getClassID(int object)
+    {
+        return buffer.getInt(record(object) + 96);
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the color of the ROI of the specified object (or <code>null</code> if unknown, e.g.
+     *         in version 1 files)
+     */
+    public Color getColor(int object)
+    {
+        int argb = hasColors ? buffer.getInt(record(object) + 100) : 0;
+        return argb == 0 ? null : new Color(argb, true);
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the bounding box of the specified object
+     */
+    public Rectangle3D.Integer getBounds(int object)
+    {
+        int r = record(object);
+        int minX = buffer.getInt(r + 12), minY = buffer.getInt(r + 16), minZ = buffer.getInt(r + 20);
+        int maxX = buffer.getInt(r + 24), maxY = buffer.getInt(r + 28), maxZ = buffer.getInt(r + 32);
+        return new Rectangle3D.Integer(minX, minY, minZ, maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1);
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the minimum intensity of the specified object
+     */
+    public double getMinValue(int object)
+    {
+        return buffer.getDouble(record(object) + 36);
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the maximum intensity of the specified object
+     */
+    public double getMaxValue(int object)
+    {
+        return buffer.getDouble(record(object) + 44);
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the mean intensity of the specified object
+     */
+    public double getMeanValue(int object)
+    {
+        return buffer.getDouble(record(object) + 52);
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the mass center (x, y, z) of the specified object
+     */
+    public double[] getMassCenter(int object)
+    {
+        int r = record(object);
+        return new double[] { buffer.getDouble(r + 60), buffer.getDouble(r + 68), buffer.getDouble(r + 76) };
+    }
+    
+    /**
+     * @param object
+     *            the object index
+     * @return the spans of the specified object, stored as consecutive (z, y, x, length)
+     *         quadruplets, sorted by z then y
+     */
+    public int[] getSpans(int object)
+    {
+        int r = record(object);
+        int offset = (int) buffer.getLong(r + 84);
+        int nbSpans = buffer.getInt(r + 92);
+        
+        int[] spans = new int[nbSpans * 4];
+        for (int i = 0; i < spans.length; i++, offset += 4)
+            spans[i] = buffer.getInt(offset);
+        
+        return spans;
+    }
+    
+    /**
+     * Creates a ROI describing the specified object
+     * 
+     * @param object
+     *            the object index
+     * @return a {@link ROI2DArea} if the segmented sequence was 2D, a {@link ROI3DArea} otherwise
+     *         (with its stored color, if any)
+     */
+    public ROI getROI(int object)
+    {
+        Rectangle3D.Integer bounds = getBounds(object);
+        int[] spans = getSpans(object);
+        
+        BooleanMask2D[] slices = new BooleanMask2D[bounds.sizeZ];
+        for (int z = 0; z < slices.length; z++)
+            slices[z] = new BooleanMask2D(new Rectangle(bounds.x, bounds.y, bounds.sizeX, bounds.sizeY), new boolean[bounds.sizeX * bounds.sizeY]);
+        
+        for (int i = 0; i < spans.length; i += 4)
+        {
+            boolean[] mask = slices[spans[i] - bounds.z].mask;
+            int offset = (spans[i + 1] - bounds.y) * bounds.sizeX + spans[i + 2] - bounds.x;
+            for (int n = 0; n < spans[i + 3]; n++)
+                mask[offset + n] = true;
+        }
+        
+        ROI roi;
+        
+        if (sizeZ == 1)
+        {
+            ROI2DArea r2 = new ROI2DArea(slices[0]);
+            r2.setT(getT(object));
+            r2.setC(getC(object));
+            roi = r2;
+        }
+        else
+        {
+            ROI3DArea r3 = new ROI3DArea(new BooleanMask3D(bounds, slices));
+            r3.setT(getT(object));
+            r3.setC(getC(object));
+            roi = r3;
+        }
+        
+        Color color = getColor(object);
+        if (color != null) roi.setColor(color);
+        
+        return roi;
+    }
+    
+    /**
+     * Paints the specified object into a sequence (at the object's time point and channel)
+     * 
+     * @param object
+     *            the object index
+     * @param sequence
+     *            the sequence to paint into (must have the same dimensions as the segmented
+     *            sequence)
+     * @param value
+     *            the value to paint the object with (e.g. its label)
+     */
+    public void paint(int object, Sequence sequence, double value)
+    {
+        int t = getT(object), c = getC(object);
+        DataType dataType = sequence.getDataType_();
+        
+        int[] spans = getSpans(object);
+        for (int i = 0; i < spans.length; i += 4)
+        {
+            Object data = sequence.getDataXY(t, spans[i], c);
+            int offset = spans[i + 1] * sizeX + spans[i + 2];
+            for (int n = 0; n < spans[i + 3]; n++)
+                Array1DUtil.setValue(data, offset + n, dataType, value);
+        }
+    }
+    
+    /**
+     * Closes the file and releases its mapping (otherwise held until garbage collection, which
+     * prevents deleting the file on Windows)
+     */
+    @Override
+    public void close() throws IOException
+    {
+        MappedByteBuffer mapping = buffer;
+        buffer = null;
+        
+        raf.close();
+        if (mapping != null) unmap(mapping);
+    }
+    
+    private static void unmap(MappedByteBuffer mapping)
+    {
+        try
+        {
+            // Java 9 and above
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), mapping);
+        }
+        catch (NoSuchMethodException e)
+        {
+            // Java 8
+            try
+            {
+                Method getCleaner = mapping.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                Object cleaner = getCleaner.invoke(mapping);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            catch (Exception e8)
+            {
+                // the mapping will be released by the garbage collector
+            }
+        }
+        catch (Exception e)
+        {
+            // the mapping will be released by the garbage collector
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.BooleanMask3D;
+import icy.roi.ROI;
+import icy.roi.ROI2D;
+import icy.roi.ROI3D;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import icy.type.rectangle.Rectangle3D;
+
+/**
+ * Writes the results of an HK-Means segmentation in a compact binary file, which can be read back
+ * (and randomly accessed) using {@link HKMeansResultReader}. The file is made of:
+ * <ul>
+ * <li>a header, storing the sequence dimensions, the segmentation parameters and the K-Means
+ * thresholds of each processed frame (with their sampled / abrupt change flags)</li>
+ * <li>the object spans, i.e. the run-length encoded (z, y, x, length) horizontal runs of each
+ * object</li>
+ * <li>the object table, storing a fixed-size record of statistics per object, including the
+ * position of its spans in the file</li>
+ * </ul>
+ * All values are stored in big-endian order. Version 1 files (without ROI colors nor threshold
+ * flags) can still be read. Files are limited to {@link #MAX_FILE_SIZE} bytes
+ * (the limit of {@link HKMeansResultReader}), objects beyond this limit are refused.<br>
+ * Every added object is stored, including empty ones (size 0, no span, NaN statistics), so that
+ * object indices in the file match the order in which objects were added.
+ * 
+ * @author Alexandre Dufour
+ */
+public class HKMeansResultWriter implements Closeable
+{
+    static final int MAGIC = 0x484B4D52; // "HKMR"
+    
+    static final int VERSION = 2;
+    
+    /**
+     * Size (in bytes) of a record in the object table of version 1 files (no color)
+     */
+    static final int RECORD_SIZE_V1 = 9 * 4 + 6 * 8 + 8 + 4 + 4;
+    
+    /**
+     * Maximum size (in bytes) of a result file
+     */
+    public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+    
+    /**
+     * Position of the (patched) object count in the header
+     */
+    static final int OBJECT_COUNT_POSITION = 8;
+    
+    /**
+     * Position of the (patched) object table offset in the header
+     */
+    static final int OBJECT_TABLE_POSITION = 12;
+    
+    /**
+     * Size (in bytes) of a single (z, y, x, length) span
+     */
+    static final int SPAN_SIZE = 16;
+    
+    /**
+     * Size (in bytes) of a record in the object table:
+     * <ul>
+     * <li>t, c, size (3 ints)</li>
+     * <li>bounding box: minX, minY, minZ, maxX, maxY, maxZ (6 ints)</li>
+     * <li>min, max, mean intensity (3 doubles)</li>
+     * <li>mass center: x, y, z (3 doubles)</li>
+     * <li>span offset (long), span count (int)</li>
+     * <li>K-Means class at which the object was extracted (int, -1 if unknown)</li>
+     * <li>color of the ROI (ARGB int, 0 if unknown)</li>
+     * </ul>
+     */
+    static final int RECORD_SIZE = 9 * 4 + 6 * 8 + 8 + 4 + 4 + 4;
+    
+    /**
+     * Flags of a threshold entry: thresholds computed from a subsample
+     */
+    static final int SAMPLED = 1;
+    
+    /**
+     * Flags of a threshold entry: abrupt change of intensity distribution
+     */
+    static final int ABRUPT_CHANGE = 2;
+    
+    private final File file;
+    
+    private final DataOutputStream out;
+    
+    /**
+     * Current position in the file
+     */
+    private long position;
+    
+    /**
+     * In-memory copy of the object table, written to disk when closing the file
+     */
+    private DataOutputStream table;
+    
+    private ByteArrayOutputStream tableBytes;
+    
+    private int objectCount = 0;
+    
+    // temporary buffers for the object currently being added
+    
+    private int[] spans = new int[4 * 64];
+    
+    private int nbSpans;
+    
+    /**
+     * Creates a new result file and writes its header
+     * 
+     * @param file
+     *            the file to write (will be overwritten if it exists)
+     * @param seqIN
+     *            the segmented sequence
+     * @param preFilter
+     *            the standard deviation of the Gaussian pre-filter used for the segmentation
+     * @param nbKMeansClasses
+     *            the number of classes used for the segmentation
+     * @param minSize
+     *            the minimum object size used for the segmentation
+     * @param maxSize
+     *            the maximum object size used for the segmentation
+     * @param minIntensity
+     *            the minimum object intensity used for the segmentation (or <code>null</code>)
+     * @param thresholds
+     *            the K-Means thresholds computed during the segmentation (or <code>null</code> if
+     *            not available)
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public HKMeansResultWriter(File file, Sequence seqIN, double preFilter, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity, ThresholdTable thresholds)
+            throws IOException
+    {
+        this(file, seqIN.getSizeX(), seqIN.getSizeY(), seqIN.getSizeZ(), seqIN.getSizeT(), seqIN.getSizeC(), preFilter, nbKMeansClasses, minSize, maxSize, minIntensity,
+                thresholds);
+    }
+    
+    /**
+     * Creates a new result file and writes its header
+     * 
+     * @param file
+     *            the file to write (will be overwritten if it exists)
+     * @param sizeX
+     *            the width of the segmented sequence
+     * @param sizeY
+     *            the height of the segmented sequence
+     * @param sizeZ
+     *            the depth of the segmented sequence
+     * @param sizeT
+     *            the number of time points of the segmented sequence
+     * @param sizeC
+     *            the number of channels of the segmented sequence
+     * @param preFilter
+     *            the standard deviation of the Gaussian pre-filter used for the segmentation
+     * @param nbKMeansClasses
+     *            the number of classes used for the segmentation
+     * @param minSize
+     *            the minimum object size used for the segmentation
+     * @param maxSize
+     *            the maximum object size used for the segmentation
+     * @param minIntensity
+     *            the minimum object intensity used for the segmentation (or <code>null</code>)
+     * @param thresholds
+     *            the K-Means thresholds computed during the segmentation (or <code>null</code> if
+     *            not available)
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public HKMeansResultWriter(File file, int sizeX, int sizeY, int sizeZ, int sizeT, int sizeC, double preFilter, byte nbKMeansClasses, int minSize, int maxSize,
+            Double minIntensity, ThresholdTable thresholds) throws IOException
+    {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        this.tableBytes = new ByteArrayOutputStream(RECORD_SIZE * 1024);
+        this.table = new DataOutputStream(tableBytes);
+        
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(0); // object count (patched on close)
+        out.writeLong(0L); // object table offset (patched on close)
+        out.writeInt(sizeX);
+        out.writeInt(sizeY);
+        out.writeInt(sizeZ);
+        out.writeInt(sizeT);
+        out.writeInt(sizeC);
+        out.writeDouble(preFilter);
+        out.writeInt(nbKMeansClasses & 0xff);
+        out.writeInt(minSize);
+        out.writeInt(maxSize);
+        out.writeDouble(minIntensity == null ? Double.NaN : minIntensity);
+        position = 68;
+        
+        // thresholds (only the processed frames are stored)
+        int nbEntries = 0;
+        if (thresholds != null) for (int t = 0; t < thresholds.getSizeT(); t++)
+            for (int c = 0; c < thresholds.getSizeC(); c++)
+                if (thresholds.getThresholds(t, c) != null) nbEntries++;
+        
+        out.writeInt(nbEntries);
+        position += 4;
+        
+        if (thresholds != null) for (int t = 0; t < thresholds.getSizeT(); t++)
+            for (int c = 0; c < thresholds.getSizeC(); c++)
+            {
+                double[] values = thresholds.getThresholds(t, c);
+                if (values == null) continue;
+                
+                int flags = 0;
+                if (thresholds.isSampled(t, c)) flags |= SAMPLED;
+                if (thresholds.isAbruptChange(t, c)) flags |= ABRUPT_CHANGE;
+                
+                out.writeInt(t);
+                out.writeInt(c);
+                out.writeInt(flags);
+                out.writeInt(values.length);
+                for (double value : values)
+                    out.writeDouble(value);
+                position += 16 + 8 * values.length;
+            }
+    }
+    
+    /**
+     * Adds the specified object to the file, using the statistics measured during the segmentation
+     * 
+     * @param roi
+     *            the object to add
+     * @param measurements
+     *            the measurements filled during the segmentation
+     * @param row
+     *            the row of the object in the measurement table
+     * @throws IOException
+     *             if the object cannot be written
+     */
+    public void addObject(ROI roi, ObjectMeasurements measurements, int row) throws IOException
+    {
+        collectSpans(roi);
+        
+        if (measurements.getSize(row) == 0)
+        {
+            writeObject(measurements.getT(row), measurements.getC(row), 0, 0, 0, 0, 0, 0, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN,
+                    measurements.getClassID(row), getARGB(roi.getColor()));
+            return;
+        }
+        
+        writeObject(measurements.getT(row), measurements.getC(row), measurements.getSize(row), measurements.getMinX(row), measurements.getMinY(row),
+                measurements.getMinZ(row), measurements.getMaxX(row), measurements.getMaxY(row), measurements.getMaxZ(row), measurements.getMinIntensity(row),
+                measurements.getMaxIntensity(row), measurements.getMeanIntensity(row), measurements.getCenterX(row), measurements.getCenterY(row),
+                measurements.getCenterZ(row), measurements.getClassID(row), getARGB(roi.getColor()));
+    }
+    
+    /**
+     * Adds the specified object to the file. The object statistics are measured from the
+     * specified sequence (the class at which the object was extracted is unknown).
+     * 
+     * @param roi
+     *            the object to add
+     * @param seqIN
+     *            the segmented sequence
+     * @throws IOException
+     *             if the object cannot be written
+     */
+    public void addObject(ROI roi, Sequence seqIN) throws IOException
+    {
+        collectSpans(roi);
+        
+        int t = Math.max(roi instanceof ROI2D ? ((ROI2D) roi).getT() : ((ROI3D) roi).getT(), 0);
+        int c = Math.max(roi instanceof ROI2D ? ((ROI2D) roi).getC() : ((ROI3D) roi).getC(), 0);
+        
+        // measure the object on its spans
+        
+        final int width = seqIN.getSizeX();
+        final DataType dataType = seqIN.getDataType_();
+        
+        int size = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = -1, maxY = -1, maxZ = -1;
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0;
+        double sumX = 0, sumY = 0, sumZ = 0;
+        
+        for (int i = 0; i < nbSpans * 4; i += 4)
+        {
+            int z = spans[i], y = spans[i + 1], x = spans[i + 2], length = spans[i + 3];
+            
+            Object data = seqIN.getDataXY(t, z, c);
+            int offset = y * width + x;
+            for (int n = 0; n < length; n++, offset++)
+            {
+                double value = Array1DUtil.getValue(data, offset, dataType);
+                if (value < min) min = value;
+                if (value > max) max = value;
+                sum += value;
+            }
+            
+            size += length;
+            sumX += length * (x + (length - 1) / 2.0);
+            sumY += length * (double) y;
+            sumZ += length * (double) z;
+            if (x < minX) minX = x;
+            if (x + length - 1 > maxX) maxX = x + length - 1;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            if (z < minZ) minZ = z;
+            if (z > maxZ) maxZ = z;
+        }
+        
+        if (size == 0)
+        {
+            writeObject(t, c, 0, 0, 0, 0, 0, 0, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, -1, getARGB(roi.getColor()));
+            return;
+        }
+        
+        writeObject(t, c, size, minX, minY, minZ, maxX, maxY, maxZ, min, max, sum / size, sumX / size, sumY / size, sumZ / size, -1, getARGB(roi.getColor()));
+    }
+    
+    /**
+     * Copies an object from another result file (e.g. to merge several files into one)
+     * 
+     * @param source
+     *            the file to copy the object from
+     * @param object
+     *            the index of the object in the source file
+     * @param t
+     *            the time point to store the object at
+     * @param c
+     *            the channel to store the object at
+     * @throws IOException
+     *             if the object cannot be written
+     */
+    void addObject(HKMeansResultReader source, int object, int t, int c) throws IOException
+    {
+        int[] sourceSpans = source.getSpans(object);
+        if (sourceSpans.length > spans.length) spans = new int[sourceSpans.length];
+        System.arraycopy(sourceSpans, 0, spans, 0, sourceSpans.length);
+        nbSpans = sourceSpans.length / 4;
+        
+        Rectangle3D.Integer bounds = source.getBounds(object);
+        double[] center = source.getMassCenter(object);
+        
+        writeObject(t, c, source.getSize(object), bounds.x, bounds.y, bounds.z, bounds.x + bounds.sizeX - 1, bounds.y + bounds.sizeY - 1, bounds.z + bounds.sizeZ - 1,
+                source.getMinValue(object), source.getMaxValue(object), source.getMeanValue(object), center[0], center[1], center[2], source.getClassID(object),
+                getARGB(source.getColor(object)));
+    }
+    
+    private static int getARGB(Color color)
+    {
+        return color == null ? 0 : color.getRGB();
+    }
+    
+    /**
+     * Stores the horizontal runs of the specified object in the current spans
+     */
+    private void collectSpans(ROI roi)
+    {
+        nbSpans = 0;
+        
+        if (roi instanceof ROI2D)
+        {
+            ROI2D r2 = (ROI2D) roi;
+            addSpans(r2.getBooleanMask(true), Math.max(r2.getZ(), 0));
+        }
+        else if (roi instanceof ROI3D)
+        {
+            for (Entry<Integer, BooleanMask2D> slice : ((ROI3D) roi).getBooleanMask(true).mask.entrySet())
+                addSpans(slice.getValue(), slice.getKey());
+        }
+        else throw new IllegalArgumentException("Unsupported ROI type: " + roi.getClass().getName());
+    }
+    
+    /**
+     * Writes the current spans and adds the corresponding record to the object table
+     */
+    private void writeObject(int t, int c, int size, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, double min, double max, double mean, double centerX,
+            double centerY, double centerZ, int classID, int color) throws IOException
+    {
+        long spanOffset = position;
+        
+        // spans written so far, these spans and the object table (including this record)
+        if (position + nbSpans * (long) SPAN_SIZE + (objectCount + 1L) * RECORD_SIZE > MAX_FILE_SIZE)
+        {
+            throw new IOException("HK-Means result files larger than " + (MAX_FILE_SIZE >> 20) + " MB are not supported (" + objectCount + " objects written)");
+        }
+        
+        for (int i = 0; i < nbSpans * 4; i++)
+            out.writeInt(spans[i]);
+        position += nbSpans * (long) SPAN_SIZE;
+        
+        table.writeInt(t);
+        table.writeInt(c);
+        table.writeInt(size);
+        table.writeInt(minX);
+        table.writeInt(minY);
+        table.writeInt(minZ);
+        table.writeInt(maxX);
+        table.writeInt(maxY);
+        table.writeInt(maxZ);
+        table.writeDouble(min);
+        table.writeDouble(max);
+        table.writeDouble(mean);
+        table.writeDouble(centerX);
+        table.writeDouble(centerY);
+        table.writeDouble(centerZ);
+        table.writeLong(spanOffset);
+        table.writeInt(nbSpans);
+        table.writeInt(classID);
+        table.writeInt(color);
+        
+        objectCount++;
+    }
+    
+    /**
+     * Appends the horizontal runs of the specified mask to the current spans
+     */
+    private void addSpans(BooleanMask2D mask, int z)
+    {
+        final int w = mask.bounds.width;
+        final int h = mask.bounds.height;
+        final boolean[] _mask = mask.mask;
+        
+        int offset = 0;
+        for (int j = 0; j < h; j++)
+        {
+            int i = 0;
+            while (i < w)
+            {
+                if (!_mask[offset + i])
+                {
+                    i++;
+                    continue;
+                }
+                
+                int start = i;
+                while (i < w && _mask[offset + i])
+                    i++;
+                
+                addSpan(z, mask.bounds.y + j, mask.bounds.x + start, i - start);
+            }
+            offset += w;
+        }
+    }
+    
+    private void addSpan(int z, int y, int x, int length)
+    {
+        if (nbSpans * 4 == spans.length) spans = Arrays.copyOf(spans, spans.length * 2);
+        
+        int i = nbSpans * 4;
+        spans[i] = z;
+        spans[i + 1] = y;
+        spans[i + 2] = x;
+        spans[i + 3] = length;
+        nbSpans++;
+    }
+    
+    /**
+     * Writes the object table and closes the file
+     */
+    @Override
+    public void close() throws IOException
+    {
+        long tableOffset = position;
+        
+        try
+        {
+            tableBytes.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+            table = null;
+            tableBytes = null;
+        }
+        
+        // patch the header
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.seek(OBJECT_COUNT_POSITION);
+            raf.writeInt(objectCount);
+            raf.seek(OBJECT_TABLE_POSITION);
+            raf.writeLong(tableOffset);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Writes the specified HK-Means results to a file
+     * 
+     * @param file
+     *            the file to write (will be overwritten if it exists)
+     * @param seqIN
+     *            the segmented sequence
+     * @param preFilter
+     *            the standard deviation of the Gaussian pre-filter used for the segmentation
+     * @param nbKMeansClasses
+     *            the number of classes used for the segmentation
+     * @param minSize
+     *            the minimum object size used for the segmentation
+     * @param maxSize
+     *            the maximum object size used for the segmentation
+     * @param minIntensity
+     *            the minimum object intensity used for the segmentation (or <code>null</code>)
+     * @param thresholds
+     *            the K-Means thresholds computed during the segmentation (or <code>null</code> if
+     *            not available)
+     * @param rois
+     *            the objects extracted by the segmentation
+     * @param measurements
+     *            the measurements filled during the segmentation (or <code>null</code> to measure
+     *            the objects from the segmented sequence)
+     * @throws IOException
+     *             if the file cannot be written
+     * @see HKMeans#hKMeans(Sequence, int, int, double, byte, int, int, Double,
+     *      plugins.adufour.ezplug.EzStatus, ThresholdTable, ObjectMeasurements)
+     */
+    public static void write(File file, Sequence seqIN, double preFilter, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity, ThresholdTable thresholds,
+            List<ROI> rois, ObjectMeasurements measurements) throws IOException
+    {
+        HKMeansResultWriter writer = new HKMeansResultWriter(file, seqIN, preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, thresholds);
+        try
+        {
+            for (int i = 0; i < rois.size(); i++)
+            {
+                if (measurements == null)
+                {
+                    writer.addObject(rois.get(i), seqIN);
+                }
+                else
+                {
+                    writer.addObject(rois.get(i), measurements, i);
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
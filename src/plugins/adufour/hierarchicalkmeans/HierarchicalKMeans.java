@@ -1,6 +1,8 @@
 package plugins.adufour.hierarchicalkmeans;
 
 import java.awt.Point;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -18,6 +20,7 @@ import icy.sequence.Sequence;
 import icy.sequence.SequenceDataIterator;
 import icy.sequence.SequenceUtil;
 import icy.swimmingPool.SwimmingObject;
+import icy.system.IcyHandledException;
 import icy.type.DataIteratorUtil;
 import icy.type.DataType;
 import icy.type.point.Point5D;
@@ -38,6 +41,7 @@ import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarListener;
 import plugins.adufour.ezplug.EzVarSequence;
 import plugins.adufour.filtering.ConvolutionException;
+import plugins.adufour.vars.lang.Var;
 import plugins.adufour.vars.lang.VarROIArray;
 import plugins.adufour.vars.lang.VarSequence;
 import plugins.adufour.vars.util.VarException;
@@ -66,16 +70,32 @@ public class HierarchicalKMeans extends EzPlug implements Block, EzStoppable
     
     protected EzVarDouble finalThreshold = new EzVarDouble("Min object intensity", 0, 0, 65535, 1);
     
+    protected EzVarBoolean sampledThresholds = new EzVarBoolean("Fast thresholds (sampling)", false);
+    
+    protected EzVarBoolean temporalThresholds = new EzVarBoolean("Temporal thresholds", false);
+    
+    protected EzVarBoolean coarseToFine = new EzVarBoolean("Coarse-to-fine (sparse images)", false);
+    
     protected EzVarBoolean exportROI      = new EzVarBoolean("Export ROIs", true);
+    protected EzVarBoolean exportROIAsync = new EzVarBoolean("Export ROIs in background", false);
     protected EzVarBoolean exportSequence = new EzVarBoolean("Export labels", false);
     protected EzVarBoolean exportSwPool   = new EzVarBoolean("Prepare for tracking", false);
     
+    protected EzVarInteger memoryBudget = new EzVarInteger("Memory budget (MB)", (int) Math.max(1, Math.min(Integer.MAX_VALUE, MemoryPlanner.getAvailableMemory() >> 20)), 1,
+            Integer.MAX_VALUE, 64);
+    
+    protected EzLabel memoryEstimate = new EzLabel(" ");
+    
+    protected EzVarInteger workerProcesses = new EzVarInteger("Worker processes", 0, 0, 256, 1);
+    
     protected EzLabel nbObjects = new EzLabel(" ");
     
     protected VarSequence outputSequence = new VarSequence("binary sequence", null);
     
     protected VarROIArray outputROIs = new VarROIArray("list of ROI");
     
+    protected Var<ObjectMeasurements> outputMeasurements = new Var<ObjectMeasurements>("measurements", ObjectMeasurements.class);
+    
     @Override
     public void initialize()
     {
@@ -87,6 +107,36 @@ public class HierarchicalKMeans extends EzPlug implements Block, EzStoppable
             public void variableChanged(EzVar<Sequence> source, Sequence newValue)
             {
                 exportSwPool.setVisible(newValue != null && newValue.getSizeT() > 1);
+                temporalThresholds.setVisible(newValue != null && newValue.getSizeT() > 1);
+                updateMemoryEstimate();
+            }
+        });
+        
+        EzVarListener<Integer> planListener = new EzVarListener<Integer>()
+        {
+            @Override
+            public void variableChanged(EzVar<Integer> source, Integer newValue)
+            {
+                updateMemoryEstimate();
+            }
+        };
+        frame.addVarChangeListener(planListener);
+        channel.addVarChangeListener(planListener);
+        memoryBudget.addVarChangeListener(planListener);
+        coarseToFine.addVarChangeListener(new EzVarListener<Boolean>()
+        {
+            @Override
+            public void variableChanged(EzVar<Boolean> source, Boolean newValue)
+            {
+                updateMemoryEstimate();
+            }
+        });
+        preFilterSigma.addVarChangeListener(new EzVarListener<Double>()
+        {
+            @Override
+            public void variableChanged(EzVar<Double> source, Double newValue)
+            {
+                updateMemoryEstimate();
             }
         });
         
@@ -116,18 +166,81 @@ public class HierarchicalKMeans extends EzPlug implements Block, EzStoppable
         finalThreshold.setToolTipText(finalThresholdHelp);
         addEzComponent(finalThreshold);
         
+        // Sampled thresholds
+        String sampledThresholdsHelp = "<html>Computes the intensity classes from a subsample of each frame instead of all pixels<br/>";
+        sampledThresholdsHelp += "(all pixels are used whenever the sample is too small or not representative)<br/>";
+        sampledThresholdsHelp += "=> useful to speed up the segmentation of very large stacks</html>";
+        sampledThresholds.setToolTipText(sampledThresholdsHelp);
+        addEzComponent(sampledThresholds);
+        
+        // Temporal thresholds
+        String temporalThresholdsHelp = "<html>Starts the intensity classes of each time point from those of the previous time point<br/>";
+        temporalThresholdsHelp += "(time points where the intensities change abruptly are reported and processed from scratch)<br/>";
+        temporalThresholdsHelp += "=> faster on long time-lapses, and keeps classes consistent over time (useful for tracking)</html>";
+        temporalThresholds.setToolTipText(temporalThresholdsHelp);
+        addEzComponent(temporalThresholds);
+        
+        // Coarse-to-fine
+        String coarseToFineHelp = "<html>Locates candidate regions on a downsampled copy of each frame, then extracts objects in these regions only<br/>";
+        coarseToFineHelp += "(the same objects are found, and the whole frame is used if the candidate regions are too large)<br/>";
+        coarseToFineHelp += "=> useful to speed up the segmentation of large images with few objects</html>";
+        coarseToFine.setToolTipText(coarseToFineHelp);
+        addEzComponent(coarseToFine);
+        
         addComponent(new JSeparator(JSeparator.HORIZONTAL));
         
         addEzComponent(exportROI);
+        addEzComponent(exportROIAsync);
+        exportROI.addVisibilityTriggerTo(exportROIAsync, true);
+        exportROIAsync.setToolTipText("<html>Adds the ROIs to the input sequence in the background and returns immediately<br/>=> useful when detecting many objects</html>");
         addEzComponent(exportSequence);
         addEzComponent(exportSwPool);
         exportSwPool.setToolTipText("Exports the detected object in a format compatible with the \"Spot Tracking\" plug-in");
         
         addComponent(new JSeparator(JSeparator.HORIZONTAL));
         
+        memoryBudget.setToolTipText("<html>Maximum amount of memory the segmentation may use<br/>=> the number of frames processed in parallel and the way temporary buffers are stored are chosen accordingly</html>");
+        addEzComponent(memoryBudget);
+        addEzComponent(memoryEstimate);
+        
+        String workerProcessesHelp = "<html>Number of separate Java processes segmenting the frames and channels (0 to segment within Icy)<br/>";
+        workerProcessesHelp += "(frames are exchanged through a temporary folder, and frames whose process fails are processed again)<br/>";
+        workerProcessesHelp += "=> useful for data sets too large to be segmented by a single process</html>";
+        workerProcesses.setToolTipText(workerProcessesHelp);
+        addEzComponent(workerProcesses);
+        
+        addComponent(new JSeparator(JSeparator.HORIZONTAL));
+        
         addEzComponent(nbObjects);
     }
     
+    /**
+     * @return the execution plan for the current parameters, or <code>null</code> if no input is
+     *         selected
+     */
+    protected ExecutionPlan getExecutionPlan()
+    {
+        Sequence sequence = input.getValue();
+        if (sequence == null) return null;
+        
+        int pyramidFactor = coarseToFine.getValue() ? CandidateRegions.DEFAULT_FACTOR : 1;
+        return MemoryPlanner.plan(sequence, frame.getValue(), channel.getValue(), preFilterSigma.getValue(), pyramidFactor, (long) memoryBudget.getValue() << 20);
+    }
+    
+    protected void updateMemoryEstimate()
+    {
+        ExecutionPlan plan = getExecutionPlan();
+        
+        if (plan == null)
+        {
+            memoryEstimate.setText(" ");
+        }
+        else
+        {
+            memoryEstimate.setText("Plan: " + plan + (plan.isWithinBudget() ? "" : " (over budget!)"));
+        }
+    }
+    
     @Override
     public void execute()
     {
@@ -174,23 +287,71 @@ public class HierarchicalKMeans extends EzPlug implements Block, EzStoppable
         byte nbKMeansClasses = nbClasses.getValue().byteValue();
         if (nbKMeansClasses < 2) throw new VarException(nbClasses.getVariable(), "HK-Means requires at least two classes to run");
         
-        List<ROI> detections = HKMeans.hKMeans(_inSeq, frame.getValue(), channel.getValue(), preFilterSigma.getValue(), nbKMeansClasses, minSize.getValue(), maxSize.getValue(),
-                finalThreshold.getValue(), getStatus());
+        ExecutionPlan plan = getExecutionPlan();
+        if (sampledThresholds.getValue()) plan.setSamplingStride(HistogramKMeans.DEFAULT_SAMPLING_STRIDE);
+        plan.setTemporal(temporalThresholds.getValue() && sizeT > 1);
+        if (!plan.isWithinBudget())
+        {
+            System.err.println("[HK-Means] Warning: the segmentation may need ~" + (plan.getEstimatedMemory() >> 20) + " MB (budget: " + memoryBudget.getValue() + " MB)");
+        }
+        
+        ObjectMeasurements measurements = new ObjectMeasurements();
+        ThresholdTable thresholds = new ThresholdTable(_inSeq.getSizeT(), _inSeq.getSizeC());
+        
+        List<ROI> detections;
+        
+        if (workerProcesses.getValue() > 0)
+        {
+            if (plan.isTemporal()) throw new VarException(workerProcesses.getVariable(), "Temporal thresholds cannot be combined with worker processes");
+            
+            try
+            {
+                ShardCoordinator coordinator = new ShardCoordinator(Files.createTempDirectory("HK-Means").toFile(), workerProcesses.getValue());
+                HKMeansResultReader result = coordinator.hKMeans(_inSeq, frame.getValue(), channel.getValue(), preFilterSigma.getValue(), nbKMeansClasses,
+                        minSize.getValue(), maxSize.getValue(), finalThreshold.getValue(), getStatus(), plan);
                 
+                try
+                {
+                    detections = new ArrayList<ROI>(result.getObjectCount());
+                    for (int object = 0; object < result.getObjectCount(); object++)
+                    {
+                        detections.add(result.getROI(object));
+                        measurements.read(result, object);
+                    }
+                    thresholds = result.getThresholds();
+                }
+                finally
+                {
+                    result.close();
+                }
+                
+                // the job files are kept on failure, to read the logs
+                coordinator.deleteJob();
+            }
+            catch (IOException e)
+            {
+                throw new IcyHandledException("HK-Means: " + e.getMessage());
+            }
+        }
+        else
+        {
+            detections = HKMeans.hKMeans(_inSeq, frame.getValue(), channel.getValue(), preFilterSigma.getValue(), nbKMeansClasses, minSize.getValue(), maxSize.getValue(),
+                    finalThreshold.getValue(), getStatus(), thresholds, measurements, plan);
+        }
+        
+        if (plan.isTemporal())
+        {
+            for (int t = minT; t < minT + sizeT; t++)
+                for (int c = 0; c < _inSeq.getSizeC(); c++)
+                    if (thresholds.isAbruptChange(t, c)) System.out.println("[HK-Means] Abrupt intensity change at T=" + t + ", C=" + c);
+        }
+        
         // Rename and store the detections
         int detectionID = 1;
         for (ROI detection : detections)
             detection.setName("HK-Means detection #" + detectionID++);
         outputROIs.setValue(detections.toArray(new ROI[detections.size()]));
-        
-        if (exportROI.getValue())
-        {
-            for (ROI roi : input.getValue().getROIs())
-                if (roi.getName().startsWith("HK-Means")) _inSeq.removeROI(roi, false);
-                
-            for (ROI roi : outputROIs.getValue())
-                _inSeq.addROI(roi, false);
-        }
+        outputMeasurements.setValue(measurements);
         
         if (getUI() != null) nbObjects.setText(detections.size() + " objects detected");
         
@@ -251,6 +412,12 @@ public class HierarchicalKMeans extends EzPlug implements Block, EzStoppable
             SwimmingObject object = new SwimmingObject(result, "HK-Means: " + result.getNumberOfDetection() + " objects");
             Icy.getMainInterface().getSwimmingPool().add(object);
         }
+        
+        // publish last, since the ROIs may be published in the background
+        if (exportROI.getValue())
+        {
+            ROIPublisher.publish(_inSeq, detections, ROIPublisher.createRunTag(), exportROIAsync.getValue());
+        }
     }
     
     /**
@@ -440,6 +607,11 @@ public class HierarchicalKMeans extends EzPlug implements Block, EzStoppable
         inputMap.add("Min size (px)", minSize.getVariable());
         inputMap.add("Max size (px)", maxSize.getVariable());
         inputMap.add("Final threshold", finalThreshold.getVariable());
+        inputMap.add("Fast thresholds (sampling)", sampledThresholds.getVariable());
+        inputMap.add("Temporal thresholds", temporalThresholds.getVariable());
+        inputMap.add("Coarse-to-fine", coarseToFine.getVariable());
+        inputMap.add("Memory budget (MB)", memoryBudget.getVariable());
+        inputMap.add("Worker processes", workerProcesses.getVariable());
         
         // force sequence export in box mode
         exportROI.setValue(false);
@@ -452,6 +624,7 @@ public class HierarchicalKMeans extends EzPlug implements Block, EzStoppable
     {
         outputMap.add("binary sequence", outputSequence);
         outputMap.add("output regions", outputROIs);
+        outputMap.add("measurements", outputMeasurements);
     }
     
 }
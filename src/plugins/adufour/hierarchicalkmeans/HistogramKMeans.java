@@ -0,0 +1,394 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.thresholder.KMeans;
+
+/**
+ * K-Means clustering of an intensity histogram, used to place the HK-Means thresholds from a
+ * stratified subsample of a frame instead of a full scan.<br>
+ * <br>
+ * The sample is made of whole rows: each frame is divided in blocks of consecutive rows (and
+ * slices), and one row is drawn at random in each block. Every voxel thus has the same chance of
+ * being sampled, and the sample is not aligned on any periodic structure of the image. Since
+ * neighboring voxels of a row are not independent, no error bound (e.g. of the
+ * Dvoretzky-Kiefer-Wolfowitz kind, which assumes independent voxels) holds in general. The only
+ * guarantee is therefore empirical: the thresholds are computed independently on two interleaved
+ * halves of the sample, and are deemed unstable (and discarded in favor of a full scan) if both
+ * halves disagree by more than {@link #STABILITY_TOLERANCE} histogram bins. A constant sample is
+ * discarded as well, since it cannot tell whether the rest of the frame is constant too. The drift
+ * of the sampled thresholds w.r.t. the full scan is measured by the equivalence oracle (see the
+ * test sources).
+ * 
+ * @author Alexandre Dufour
+ */
+public class HistogramKMeans
+{
+    /**
+     * Number of histogram bins (same as the full-scan K-Means)
+     */
+    public static final int NB_BINS = 255;
+    
+    /**
+     * Sampling stride used by default (i.e. about 1 voxel out of 16 is sampled)
+     */
+    public static final int DEFAULT_SAMPLING_STRIDE = 16;
+    
+    /**
+     * Minimum number of sampled voxels below which sampling is not used
+     */
+    public static final int MIN_SAMPLE_SIZE = 10000;
+    
+    /**
+     * Maximum difference (in histogram bins) between the thresholds of both halves of the sample
+     */
+    public static final double STABILITY_TOLERANCE = 2.0;
+    
+    private static final int MAX_ITERATIONS = 100;
+    
+    /**
+     * Seed of the random row selection (fixed, so that results are reproducible)
+     */
+    private static final long SEED = 0x484B4D65616E73L;
+    
+    /**
+     * Computes the K-Means thresholds of a frame, and stores them in the specified table. In
+     * temporal mode, the thresholds are first seeded with those of the previous frame (see
+     * {@link TemporalKMeans}). Otherwise (or for the first frame, after an abrupt change, or if the
+     * seeded thresholds are unstable), the thresholds are computed from a subsample of the frame if
+     * <code>stride</code> is larger than 1 and the sample is large and stable enough, and with the
+     * original (full-scan) K-Means otherwise.
+     * 
+     * @param frame
+     *            the frame to process (first time point and channel)
+     * @param nbClasses
+     *            the number of classes
+     * @param stride
+     *            the sampling stride (1 to use every voxel)
+     * @param temporal
+     *            the thresholds of the previous frames of the same channel (or <code>null</code> if
+     *            frames are processed independently)
+     * @param table
+     *            the table receiving the thresholds (or <code>null</code>)
+     * @param t
+     *            the time point of the frame in the table
+     * @param c
+     *            the channel of the frame in the table
+     * @return the <code>nbClasses - 1</code> thresholds
+     */
+    public static double[] computeThresholds(Sequence frame, int nbClasses, int stride, TemporalKMeans temporal, ThresholdTable table, int t, int c)
+    {
+        double[] thresholds = null;
+        
+        if (temporal != null)
+        {
+            thresholds = temporal.computeThresholds(frame, 0, 0, stride);
+            if (table != null) table.setAbruptChange(t, c, temporal.isAbruptChange());
+        }
+        
+        if (thresholds == null && stride > 1) thresholds = computeSampledThresholds(frame, 0, 0, nbClasses, stride);
+        
+        boolean sampled = thresholds != null && stride > 1;
+        
+        if (thresholds == null) thresholds = KMeans.computeKMeansThresholds(frame, 0, nbClasses, 255);
+        
+        if (temporal != null) temporal.setThresholds(thresholds);
+        
+        if (table != null) table.setThresholds(t, c, thresholds, sampled);
+        
+        return thresholds;
+    }
+    
+    /**
+     * Computes the K-Means thresholds of a frame from a stratified subsample of its slices and rows
+     * 
+     * @param sequence
+     *            the sequence to sample
+     * @param t
+     *            the time point to sample
+     * @param c
+     *            the channel to sample
+     * @param nbClasses
+     *            the number of classes
+     * @param stride
+     *            the sampling stride (about 1 voxel out of <code>stride</code> is sampled)
+     * @return the <code>nbClasses - 1</code> thresholds, or <code>null</code> if the sample is too
+     *         small, constant, or if the sampled thresholds are unstable (in which case a full scan
+     *         should be used). The thresholds of both halves of the sample are within
+     *         {@link #STABILITY_TOLERANCE} bins of each other, but their distance to the full-scan
+     *         thresholds is not bounded
+     */
+    public static double[] computeSampledThresholds(Sequence sequence, int t, int c, int nbClasses, int stride)
+    {
+        int[][] rows = getSample(sequence, stride);
+        
+        // 1) intensity range of the sample
+        
+        double[] range = getRange(sequence, t, c, rows);
+        double min = range[0], max = range[1];
+        
+        // a constant sample says nothing about the rest of the frame (e.g. sparse objects between
+        // the sampled rows)
+        if (range[2] < MIN_SAMPLE_SIZE || min == max) return null;
+        
+        // 2) histograms of both halves (interleaved strata) of the sample
+        
+        double binWidth = (max - min) / NB_BINS;
+        double[] evenHistogram = new double[NB_BINS];
+        double[] oddHistogram = new double[NB_BINS];
+        fillHistogram(sequence, t, c, rows, min, binWidth, evenHistogram, oddHistogram);
+        
+        // 3) check the stability of the thresholds across both halves
+        
+        if (!isStable(evenHistogram, oddHistogram, min, binWidth, nbClasses, null)) return null;
+        
+        return computeThresholds(merge(evenHistogram, oddHistogram), min, binWidth, nbClasses, null);
+    }
+    
+    /**
+     * @param centers
+     *            the initial class centers (see
+     *            {@link #computeThresholds(double[], double, double, int, double[])}, left
+     *            unchanged)
+     * @return <code>true</code> if the thresholds computed on both halves of a sample differ by
+     *         less than {@link #STABILITY_TOLERANCE} bins
+     */
+    static boolean isStable(double[] evenHistogram, double[] oddHistogram, double min, double binWidth, int nbClasses, double[] centers)
+    {
+        double[] evenThresholds = computeThresholds(evenHistogram, min, binWidth, nbClasses, centers == null ? null : centers.clone());
+        double[] oddThresholds = computeThresholds(oddHistogram, min, binWidth, nbClasses, centers == null ? null : centers.clone());
+        
+        for (int i = 0; i < evenThresholds.length; i++)
+            if (Math.abs(evenThresholds[i] - oddThresholds[i]) > STABILITY_TOLERANCE * binWidth) return false;
+        
+        return true;
+    }
+    
+    /**
+     * @return the bin-wise sum of both histograms
+     */
+    static double[] merge(double[] evenHistogram, double[] oddHistogram)
+    {
+        double[] histogram = new double[evenHistogram.length];
+        for (int bin = 0; bin < histogram.length; bin++)
+            histogram[bin] = evenHistogram[bin] + oddHistogram[bin];
+        return histogram;
+    }
+    
+    /**
+     * @return the stride between sampled slices (the sampling stride is spread over slices and
+     *         rows)
+     */
+    static int getSliceStride(int depth, int stride)
+    {
+        return depth > 1 ? Math.max(1, (int) Math.round(Math.sqrt(stride))) : 1;
+    }
+    
+    /**
+     * @return the stride between sampled rows (the sampling stride is spread over slices and rows)
+     */
+    static int getRowStride(int depth, int stride)
+    {
+        return Math.max(1, stride / getSliceStride(depth, stride));
+    }
+    
+    /**
+     * Draws the rows to sample: the slices and rows of the sequence are divided in blocks of
+     * consecutive slices and rows (see {@link #getSliceStride(int, int)} and
+     * {@link #getRowStride(int, int)}), and one slice (resp. row) is drawn at random in each block
+     * 
+     * @return the sampled rows of each slice (<code>null</code> if the slice is not sampled)
+     */
+    static int[][] getSample(Sequence sequence, int stride)
+    {
+        final int height = sequence.getSizeY();
+        final int depth = sequence.getSizeZ();
+        
+        int sliceStride = getSliceStride(depth, stride);
+        int rowStride = getRowStride(depth, stride);
+        
+        Random random = new Random(SEED);
+        int[][] rows = new int[depth][];
+        
+        for (int block = 0; block < depth; block += sliceStride)
+        {
+            int z = block + random.nextInt(Math.min(sliceStride, depth - block));
+            
+            rows[z] = new int[(height + rowStride - 1) / rowStride];
+            for (int i = 0; i < rows[z].length; i++)
+                rows[z][i] = i * rowStride + random.nextInt(Math.min(rowStride, height - i * rowStride));
+        }
+        
+        return rows;
+    }
+    
+    /**
+     * @return the minimum, maximum and number of the sampled voxels
+     */
+    static double[] getRange(Sequence sequence, int t, int c, int[][] rows)
+    {
+        final int width = sequence.getSizeX();
+        final DataType dataType = sequence.getDataType_();
+        
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        long sampleSize = 0;
+        
+        for (int z = 0; z < rows.length; z++)
+        {
+            if (rows[z] == null) continue;
+            
+            Object data = sequence.getDataXY(t, z, c);
+            
+            for (int y : rows[z])
+            {
+                for (int x = 0, offset = y * width; x < width; x++, offset++)
+                {
+                    double value = Array1DUtil.getValue(data, offset, dataType);
+                    if (value < min) min = value;
+                    if (value > max) max = value;
+                }
+                sampleSize += width;
+            }
+        }
+        
+        return new double[] { min, max, sampleSize };
+    }
+    
+    /**
+     * Accumulates the sampled voxels into the specified histograms, alternating between both
+     * histograms from one sampled row to the next. Voxels outside the histogram range are counted
+     * in the first or last bin
+     * 
+     * @param evenHistogram
+     *            the histogram receiving the even sampled rows
+     * @param oddHistogram
+     *            the histogram receiving the odd sampled rows (may be the same as
+     *            <code>evenHistogram</code>)
+     * @return the number of sampled voxels that fell outside the histogram range
+     */
+    static long fillHistogram(Sequence sequence, int t, int c, int[][] rows, double min, double binWidth, double[] evenHistogram, double[] oddHistogram)
+    {
+        final int width = sequence.getSizeX();
+        final DataType dataType = sequence.getDataType_();
+        final double max = min + evenHistogram.length * binWidth;
+        
+        long outliers = 0;
+        int stratum = 0;
+        
+        for (int z = 0; z < rows.length; z++)
+        {
+            if (rows[z] == null) continue;
+            
+            Object data = sequence.getDataXY(t, z, c);
+            
+            for (int y : rows[z])
+            {
+                double[] histogram = (stratum++ & 1) == 0 ? evenHistogram : oddHistogram;
+                
+                for (int x = 0, offset = y * width; x < width; x++, offset++)
+                {
+                    double value = Array1DUtil.getValue(data, offset, dataType);
+                    if (value < min || value > max) outliers++;
+                    histogram[getBin(value, min, binWidth)]++;
+                }
+            }
+        }
+        
+        return outliers;
+    }
+    
+    static int getBin(double value, double min, double binWidth)
+    {
+        int bin = (int) ((value - min) / binWidth);
+        return bin < 0 ? 0 : bin >= NB_BINS ? NB_BINS - 1 : bin;
+    }
+    
+    /**
+     * Clusters the specified histogram into the specified number of classes
+     * 
+     * @param histogram
+     *            the histogram counts
+     * @param min
+     *            the intensity at the lower edge of the first bin
+     * @param binWidth
+     *            the width of each bin
+     * @param nbClasses
+     *            the number of classes
+     * @param centers
+     *            the initial class centers (sorted), or <code>null</code> to spread them evenly
+     *            over the histogram. If not <code>null</code>, this array receives the final
+     *            centers
+     * @return the <code>nbClasses - 1</code> thresholds separating the classes
+     */
+    public static double[] computeThresholds(double[] histogram, double min, double binWidth, int nbClasses, double[] centers)
+    {
+        if (centers == null)
+        {
+            centers = new double[nbClasses];
+            for (int k = 0; k < nbClasses; k++)
+                centers[k] = min + (k + 0.5) * histogram.length * binWidth / nbClasses;
+        }
+        
+        cluster(histogram, min, binWidth, centers);
+        
+        double[] thresholds = new double[nbClasses - 1];
+        for (int k = 0; k < thresholds.length; k++)
+            thresholds[k] = (centers[k] + centers[k + 1]) / 2;
+        
+        return thresholds;
+    }
+    
+    /**
+     * Moves the specified (sorted) class centers until convergence of the K-Means
+     * 
+     * @return the number of iterations needed to converge
+     */
+    static int cluster(double[] histogram, double min, double binWidth, double[] centers)
+    {
+        final int nbClasses = centers.length;
+        
+        double[] sums = new double[nbClasses];
+        double[] counts = new double[nbClasses];
+        
+        int iteration = 0;
+        while (iteration < MAX_ITERATIONS)
+        {
+            iteration++;
+            
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            
+            // assign each bin to the nearest center (centers are sorted)
+            int k = 0;
+            for (int bin = 0; bin < histogram.length; bin++)
+            {
+                double value = min + (bin + 0.5) * binWidth;
+                while (k < nbClasses - 1 && value > (centers[k] + centers[k + 1]) / 2)
+                    k++;
+                
+                sums[k] += value * histogram[bin];
+                counts[k] += histogram[bin];
+            }
+            
+            boolean converged = true;
+            for (k = 0; k < nbClasses; k++)
+            {
+                if (counts[k] == 0) continue;
+                
+                double center = sums[k] / counts[k];
+                if (Math.abs(center - centers[k]) > binWidth * 1e-3) converged = false;
+                centers[k] = center;
+            }
+            // empty classes keep their center, which may break the order
+            Arrays.sort(centers);
+            
+            if (converged) break;
+        }
+        
+        return iteration;
+    }
+}
@@ -0,0 +1,135 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import icy.sequence.Sequence;
+
+/**
+ * Estimates the memory needed by an HK-Means segmentation before running it, and selects the
+ * degree of parallelism that fits within a given memory budget.<br>
+ * Estimates only account for the temporary buffers of the segmentation, i.e. neither the input
+ * sequence (already in memory) nor the extracted objects (which depend on the image content).
+ * 
+ * @author Alexandre Dufour
+ */
+public class MemoryPlanner
+{
+    /**
+     * Approximate number of bytes per voxel used when labeling the current class (integer labels
+     * of {@link plugins.adufour.roi.LabelExtractor}, plus the boolean masks of the extracted ROI,
+     * which may cover the entire frame)
+     */
+    private static final int LABELING_BYTES_PER_VOXEL = 4 + 1;
+    
+    /**
+     * Approximate number of bytes per voxel used by the Gaussian pre-filter (double precision)
+     */
+    private static final int FILTERING_BYTES_PER_VOXEL = 8;
+    
+    /**
+     * Number of bytes per voxel of a candidate region in coarse-to-fine mode (classes and current
+     * class of the region)
+     */
+    private static final int REGION_BYTES_PER_VOXEL = 2;
+    
+    /**
+     * Number of bytes per block of candidate regions in coarse-to-fine mode (coarse class, coarse
+     * labels and region of each block)
+     */
+    private static final int BLOCK_BYTES = 1 + 4 + 4;
+    
+    /**
+     * @return the amount of memory (in bytes) that the JVM can still allocate
+     */
+    public static long getAvailableMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+    
+    /**
+     * Estimates the peak memory needed to segment a single frame (i.e. by a single thread). Each
+     * thread allocates its buffers once and reuses them for all the frames it processes, so the
+     * peak memory of a plan is this estimate times the number of threads
+     * 
+     * @param seqIN
+     *            the sequence to segment
+     * @param preFilter
+     *            the standard deviation of the Gaussian pre-filter (0 for none)
+     * @param pyramidFactor
+     *            the downsampling factor of the coarse-to-fine mode (1 if disabled, see
+     *            {@link ExecutionPlan#setPyramidFactor(int)})
+     * @return the estimated peak memory in bytes
+     */
+    public static long estimateFrameMemory(Sequence seqIN, double preFilter, int pyramidFactor)
+    {
+        long voxels = (long) seqIN.getSizeX() * seqIN.getSizeY() * seqIN.getSizeZ();
+        
+        long copy = voxels * seqIN.getDataType_().getSize();
+        long filtering = preFilter > 0 ? voxels * FILTERING_BYTES_PER_VOXEL : 0;
+        long labeling = voxels * LABELING_BYTES_PER_VOXEL;
+        
+        // copy + current class + objects found so far, then either filtering or labeling
+        long memory = copy + voxels + voxels + Math.max(filtering, labeling);
+        
+        if (pyramidFactor > 1)
+        {
+            // the candidate regions are only refined separately if they cover at most a fraction of
+            // the frame (the labeling of a region then being as large as the region itself)
+            long blocks = voxels / ((long) pyramidFactor * pyramidFactor) + 1;
+            memory += blocks * BLOCK_BYTES + (long) (voxels * CandidateRegions.MAX_COVERAGE) * REGION_BYTES_PER_VOXEL;
+        }
+        
+        return memory;
+    }
+    
+    /**
+     * Estimates the peak memory needed to segment the specified sequence with the specified number
+     * of threads
+     * 
+     * @param seqIN
+     *            the sequence to segment
+     * @param preFilter
+     *            the standard deviation of the Gaussian pre-filter (0 for none)
+     * @param pyramidFactor
+     *            the downsampling factor of the coarse-to-fine mode (1 if disabled)
+     * @param nbThreads
+     *            the number of frames processed in parallel
+     * @return the estimated peak memory in bytes
+     */
+    public static long estimateMemory(Sequence seqIN, double preFilter, int pyramidFactor, int nbThreads)
+    {
+        return nbThreads * estimateFrameMemory(seqIN, preFilter, pyramidFactor);
+    }
+    
+    /**
+     * Selects the execution plan with the highest degree of parallelism that fits within the
+     * specified budget. If even a single thread does not fit, a single-threaded plan is returned
+     * anyway (see {@link ExecutionPlan#isWithinBudget()}).
+     * 
+     * @param seqIN
+     *            the sequence to segment
+     * @param t
+     *            the time point to process (or -1 to process all time points)
+     * @param c
+     *            the channel to process (or -1 to process all channels)
+     * @param preFilter
+     *            the standard deviation of the Gaussian pre-filter (0 for none)
+     * @param pyramidFactor
+     *            the downsampling factor of the coarse-to-fine mode (1 if disabled), which is also
+     *            set on the returned plan
+     * @param budget
+     *            the memory budget (in bytes)
+     * @return the selected execution plan
+     */
+    public static ExecutionPlan plan(Sequence seqIN, int t, int c, double preFilter, int pyramidFactor, long budget)
+    {
+        int nbUnits = (t >= 0 ? 1 : seqIN.getSizeT()) * (c >= 0 ? 1 : seqIN.getSizeC());
+        int maxThreads = Math.max(1, Math.min(nbUnits, Runtime.getRuntime().availableProcessors()));
+        
+        long frameMemory = estimateFrameMemory(seqIN, preFilter, pyramidFactor);
+        int nbThreads = (int) Math.max(1, Math.min(maxThreads, budget / Math.max(1, frameMemory)));
+        
+        ExecutionPlan plan = new ExecutionPlan(nbThreads, nbThreads * frameMemory, budget);
+        plan.setPyramidFactor(pyramidFactor);
+        return plan;
+    }
+}
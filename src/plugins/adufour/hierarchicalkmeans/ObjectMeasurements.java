@@ -0,0 +1,447 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.ROI;
+import icy.roi.ROI2D;
+import icy.roi.ROI3D;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import icy.type.rectangle.Rectangle3D;
+
+/**
+ * Column-oriented table of measurements on the objects extracted by HK-Means. Each row describes
+ * one object (in the same order as the list of ROI returned by
+ * {@link HKMeans#hKMeans(Sequence, int, int, double, byte, int, int, Double, plugins.adufour.ezplug.EzStatus, ThresholdTable, ObjectMeasurements)}
+ * ), and each column is stored as a primitive array.<br>
+ * Intensities are always measured on the <i>raw</i> input data (at the object's time point and
+ * channel), i.e. before the optional Gaussian pre-filter used for segmentation, consistently with
+ * the minimum intensity constraint. Use {@link #measure(ROI, Sequence, int, int, int)} on a filtered
+ * copy of the sequence to obtain filtered intensities instead.
+ * 
+ * @author Alexandre Dufour
+ */
+public class ObjectMeasurements
+{
+    private int rowCount = 0;
+    
+    private int[] t = new int[0], c = new int[0], classID = new int[0], size = new int[0];
+    
+    private int[] minX = new int[0], minY = new int[0], minZ = new int[0], maxX = new int[0], maxY = new int[0], maxZ = new int[0];
+    
+    private double[] minIntensity = new double[0], maxIntensity = new double[0], meanIntensity = new double[0];
+    
+    private double[] centerX = new double[0], centerY = new double[0], centerZ = new double[0];
+    
+    /**
+     * @return the number of objects in this table
+     */
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+    
+    /**
+     * Measures the specified object and appends the measurements to this table
+     * 
+     * @param roi
+     *            the object to measure
+     * @param seqIN
+     *            the sequence to measure the object intensity in (HK-Means gives the raw input
+     *            sequence, not the pre-filtered data it was segmented on)
+     * @param frame
+     *            the time point of the object
+     * @param channel
+     *            the channel of the object
+     * @param kMeansClass
+     *            the class at which the object was extracted
+     * @return the row index of the object
+     */
+    public int measure(ROI roi, Sequence seqIN, int frame, int channel, int kMeansClass)
+    {
+        int row = addRow();
+        t[row] = frame;
+        c[row] = channel;
+        classID[row] = kMeansClass;
+        minX[row] = minY[row] = minZ[row] = Integer.MAX_VALUE;
+        maxX[row] = maxY[row] = maxZ[row] = -1;
+        minIntensity[row] = Double.MAX_VALUE;
+        maxIntensity[row] = -Double.MAX_VALUE;
+        
+        if (roi instanceof ROI2D)
+        {
+            ROI2D r2 = (ROI2D) roi;
+            measure(row, r2.getBooleanMask(true), Math.max(r2.getZ(), 0), seqIN);
+        }
+        else if (roi instanceof ROI3D)
+        {
+            for (Entry<Integer, BooleanMask2D> slice : ((ROI3D) roi).getBooleanMask(true).mask.entrySet())
+                measure(row, slice.getValue(), slice.getKey(), seqIN);
+        }
+        
+        int n = size[row];
+        if (n > 0)
+        {
+            meanIntensity[row] /= n;
+            centerX[row] /= n;
+            centerY[row] /= n;
+            centerZ[row] /= n;
+        }
+        
+        return row;
+    }
+    
+    private void measure(int row, BooleanMask2D mask, int z, Sequence seqIN)
+    {
+        final int width = seqIN.getSizeX();
+        final DataType dataType = seqIN.getDataType_();
+        final Object data = seqIN.getDataXY(t[row], z, c[row]);
+        
+        final int w = mask.bounds.width;
+        final int h = mask.bounds.height;
+        final boolean[] _mask = mask.mask;
+        
+        int n = 0;
+        double min = minIntensity[row], max = maxIntensity[row], sum = 0, sumX = 0, sumY = 0;
+        
+        int maskOffset = 0;
+        for (int j = 0; j < h; j++)
+        {
+            int y = mask.bounds.y + j;
+            int offset = y * width + mask.bounds.x;
+            
+            for (int i = 0; i < w; i++, maskOffset++, offset++)
+            {
+                if (!_mask[maskOffset]) continue;
+                
+                double value = Array1DUtil.getValue(data, offset, dataType);
+                if (value < min) min = value;
+                if (value > max) max = value;
+                sum += value;
+                
+                int x = mask.bounds.x + i;
+                if (x < minX[row]) minX[row] = x;
+                if (x > maxX[row]) maxX[row] = x;
+                if (y < minY[row]) minY[row] = y;
+                if (y > maxY[row]) maxY[row] = y;
+                sumX += x;
+                sumY += y;
+                n++;
+            }
+        }
+        
+        if (n == 0) return;
+        
+        if (z < minZ[row]) minZ[row] = z;
+        if (z > maxZ[row]) maxZ[row] = z;
+        size[row] += n;
+        minIntensity[row] = min;
+        maxIntensity[row] = max;
+        meanIntensity[row] += sum;
+        centerX[row] += sumX;
+        centerY[row] += sumY;
+        centerZ[row] += n * (double) z;
+    }
+    
+    /**
+     * Appends all the rows of the specified table to this table
+     *
+     * @param other
+     *            the table to append
+     */
+    public void append(ObjectMeasurements other)
+    {
+        for (int i = 0; i < other.rowCount; i++)
+        {
+            int row = addRow();
+            t[row] = other.t[i];
+            c[row] = other.c[i];
+            classID[row] = other.classID[i];
+            size[row] = other.size[i];
+            minX[row] = other.minX[i];
+            minY[row] = other.minY[i];
+            minZ[row] = other.minZ[i];
+            maxX[row] = other.maxX[i];
+            maxY[row] = other.maxY[i];
+            maxZ[row] = other.maxZ[i];
+            minIntensity[row] = other.minIntensity[i];
+            maxIntensity[row] = other.maxIntensity[i];
+            meanIntensity[row] = other.meanIntensity[i];
+            centerX[row] = other.centerX[i];
+            centerY[row] = other.centerY[i];
+            centerZ[row] = other.centerZ[i];
+        }
+    }
+    
+    /**
+     * Appends the measurements of an object stored in a result file to this table
+     * 
+     * @param reader
+     *            the result file
+     * @param object
+     *            the index of the object in the file
+     * @return the row index of the object
+     */
+    public int read(HKMeansResultReader reader, int object)
+    {
+        int row = addRow();
+        t[row] = reader.getT(object);
+        c[row] = reader.getC(object);
+        classID[row] = reader.getClassID(object);
+        size[row] = reader.getSize(object);
+        
+        Rectangle3D.Integer bounds = reader.getBounds(object);
+        minX[row] = bounds.x;
+        minY[row] = bounds.y;
+        minZ[row] = bounds.z;
+        maxX[row] = bounds.x + bounds.sizeX - 1;
+        maxY[row] = bounds.y + bounds.sizeY - 1;
+        maxZ[row] = bounds.z + bounds.sizeZ - 1;
+        
+        minIntensity[row] = reader.getMinValue(object);
+        maxIntensity[row] = reader.getMaxValue(object);
+        meanIntensity[row] = reader.getMeanValue(object);
+        
+        double[] center = reader.getMassCenter(object);
+        centerX[row] = center[0];
+        centerY[row] = center[1];
+        centerZ[row] = center[2];
+        
+        return row;
+    }
+    
+    /**
+     * Removes the last row of the table
+     */
+    public void removeLastRow()
+    {
+        if (rowCount > 0) rowCount--;
+    }
+    
+    private int addRow()
+    {
+        if (rowCount == t.length)
+        {
+            int capacity = Math.max(16, rowCount * 2);
+            t = Arrays.copyOf(t, capacity);
+            c = Arrays.copyOf(c, capacity);
+            classID = Arrays.copyOf(classID, capacity);
+            size = Arrays.copyOf(size, capacity);
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            minZ = Arrays.copyOf(minZ, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            maxZ = Arrays.copyOf(maxZ, capacity);
+            minIntensity = Arrays.copyOf(minIntensity, capacity);
+            maxIntensity = Arrays.copyOf(maxIntensity, capacity);
+            meanIntensity = Arrays.copyOf(meanIntensity, capacity);
+            centerX = Arrays.copyOf(centerX, capacity);
+            centerY = Arrays.copyOf(centerY, capacity);
+            centerZ = Arrays.copyOf(centerZ, capacity);
+        }
+        
+        int row = rowCount++;
+        size[row] = 0;
+        meanIntensity[row] = centerX[row] = centerY[row] = centerZ[row] = 0;
+        return row;
+    }
+    
+    // Cell access
+    
+    public int getT(int row)
+    {
+        return t[row];
+    }
+    
+    public int getC(int row)
+    {
+        return c[row];
+    }
+    
+    /**
+     * @param row
+     *            the object index
+     * @return the K-Means class at which the object was extracted
+     */
+    public int getClassID(int row)
+    {
+        return classID[row];
+    }
+    
+    /**
+     * @param row
+     *            the object index
+     * @return the size of the object (in pixels)
+     */
+    public int getSize(int row)
+    {
+        return size[row];
+    }
+    
+    public int getMinX(int row)
+    {
+        return minX[row];
+    }
+    
+    public int getMinY(int row)
+    {
+        return minY[row];
+    }
+    
+    public int getMinZ(int row)
+    {
+        return minZ[row];
+    }
+    
+    public int getMaxX(int row)
+    {
+        return maxX[row];
+    }
+    
+    public int getMaxY(int row)
+    {
+        return maxY[row];
+    }
+    
+    public int getMaxZ(int row)
+    {
+        return maxZ[row];
+    }
+    
+    /**
+     * @param row
+     *            the object index
+     * @return the minimum intensity of the object, in the raw (unfiltered) input data
+     */
+    public double getMinIntensity(int row)
+    {
+        return minIntensity[row];
+    }
+    
+    /**
+     * @param row
+     *            the object index
+     * @return the maximum intensity of the object, in the raw (unfiltered) input data
+     */
+    public double getMaxIntensity(int row)
+    {
+        return maxIntensity[row];
+    }
+    
+    /**
+     * @param row
+     *            the object index
+     * @return the mean intensity of the object, in the raw (unfiltered) input data
+     */
+    public double getMeanIntensity(int row)
+    {
+        return meanIntensity[row];
+    }
+    
+    public double getCenterX(int row)
+    {
+        return centerX[row];
+    }
+    
+    public double getCenterY(int row)
+    {
+        return centerY[row];
+    }
+    
+    public double getCenterZ(int row)
+    {
+        return centerZ[row];
+    }
+    
+    // Column access (the returned arrays are copies, trimmed to the number of rows)
+    
+    public int[] getT()
+    {
+        return Arrays.copyOf(t, rowCount);
+    }
+    
+    public int[] getC()
+    {
+        return Arrays.copyOf(c, rowCount);
+    }
+    
+    public int[] getClassID()
+    {
+        return Arrays.copyOf(classID, rowCount);
+    }
+    
+    public int[] getSize()
+    {
+        return Arrays.copyOf(size, rowCount);
+    }
+    
+    public int[] getMinX()
+    {
+        return Arrays.copyOf(minX, rowCount);
+    }
+    
+    public int[] getMinY()
+    {
+        return Arrays.copyOf(minY, rowCount);
+    }
+    
+    public int[] getMinZ()
+    {
+        return Arrays.copyOf(minZ, rowCount);
+    }
+    
+    public int[] getMaxX()
+    {
+        return Arrays.copyOf(maxX, rowCount);
+    }
+    
+    public int[] getMaxY()
+    {
+        return Arrays.copyOf(maxY, rowCount);
+    }
+    
+    public int[] getMaxZ()
+    {
+        return Arrays.copyOf(maxZ, rowCount);
+    }
+    
+    public double[] getMinIntensity()
+    {
+        return Arrays.copyOf(minIntensity, rowCount);
+    }
+    
+    public double[] getMaxIntensity()
+    {
+        return Arrays.copyOf(maxIntensity, rowCount);
+    }
+    
+    public double[] getMeanIntensity()
+    {
+        return Arrays.copyOf(meanIntensity, rowCount);
+    }
+    
+    public double[] getCenterX()
+    {
+        return Arrays.copyOf(centerX, rowCount);
+    }
+    
+    public double[] getCenterY()
+    {
+        return Arrays.copyOf(centerY, rowCount);
+    }
+    
+    public double[] getCenterZ()
+    {
+        return Arrays.copyOf(centerZ, rowCount);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return rowCount + " objects";
+    }
+}
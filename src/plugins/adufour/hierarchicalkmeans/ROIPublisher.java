@@ -0,0 +1,170 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import icy.system.thread.ThreadUtil;
+
+/**
+ * Publishes HK-Means detections onto a sequence in a single batched update. Every published ROI is
+ * tagged with the run that produced it, and the ROIs published on each sequence are tracked by run
+ * tag, so that the results of previous runs can be removed as a set (within the same update)
+ * without scanning the ROIs of the sequence.<br>
+ * ROIs tagged by a previous session (i.e. restored with the sequence) are collected once, the first
+ * time a sequence is published onto. Untagged ROIs of earlier versions are only removed on request,
+ * see {@link #removeLegacyROIs(Sequence)}.
+ * 
+ * @author Alexandre Dufour
+ */
+public class ROIPublisher
+{
+    /**
+     * Name of the ROI property holding the tag of the run that produced the ROI
+     */
+    public static final String RUN_TAG_PROPERTY = "HK-Means run";
+    
+    /**
+     * Name prefix of the ROIs published by versions that did not tag them
+     */
+    private static final String LEGACY_NAME_PREFIX = "HK-Means";
+    
+    private static final AtomicInteger runID = new AtomicInteger(1);
+    
+    /**
+     * Serializes publications, so that a background publication and the next run do not
+     * interleave (a private lock, since Icy synchronizes on sequences for its own purposes)
+     */
+    private static final Object lock = new Object();
+    
+    /**
+     * ROIs published on each sequence, by run tag (guarded by {@link #lock})
+     */
+    private static final Map<Sequence, Map<String, List<ROI>>> published = new WeakHashMap<Sequence, Map<String, List<ROI>>>();
+    
+    /**
+     * @return a new tag uniquely identifying an HK-Means run within this session
+     */
+    public static String createRunTag()
+    {
+        return "HK-Means#" + runID.getAndIncrement();
+    }
+    
+    /**
+     * Replaces the results of any previous HK-Means run on the specified sequence by the given
+     * ROIs. Removal and insertion happen within a single update session of the sequence, so that
+     * listeners and viewers are notified only once.
+     * 
+     * @param sequence
+     *            the sequence to publish the ROIs onto
+     * @param rois
+     *            the ROIs to publish (they should not be modified afterwards if published
+     *            asynchronously)
+     * @param runTag
+     *            the tag of the run that produced the ROIs (see {@link #createRunTag()})
+     * @param asynchronous
+     *            <code>true</code> to publish the ROIs in a background thread and return
+     *            immediately, <code>false</code> to return once the ROIs are published
+     */
+    public static void publish(final Sequence sequence, List<ROI> rois, final String runTag, boolean asynchronous)
+    {
+        final List<ROI> _rois = new ArrayList<ROI>(rois);
+        for (ROI roi : _rois)
+            roi.setProperty(RUN_TAG_PROPERTY, runTag);
+        
+        if (asynchronous)
+        {
+            ThreadUtil.bgRun(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    publish(sequence, _rois, runTag);
+                }
+            });
+        }
+        else
+        {
+            publish(sequence, _rois, runTag);
+        }
+    }
+    
+    private static void publish(Sequence sequence, List<ROI> rois, String runTag)
+    {
+        synchronized (lock)
+        {
+            Map<String, List<ROI>> runs = getRuns(sequence);
+            
+            sequence.beginUpdate();
+            try
+            {
+                for (List<ROI> previous : runs.values())
+                    sequence.removeROIs(previous, false);
+                runs.clear();
+                
+                sequence.addROIs(rois, false);
+                runs.put(runTag, rois);
+            }
+            finally
+            {
+                sequence.endUpdate();
+            }
+        }
+    }
+    
+    /**
+     * @return the ROIs published on the specified sequence, by run tag. The first call for a
+     *         sequence collects the tagged ROIs it already holds (e.g. restored from a file)
+     */
+    private static Map<String, List<ROI>> getRuns(Sequence sequence)
+    {
+        Map<String, List<ROI>> runs = published.get(sequence);
+        if (runs != null) return runs;
+        
+        runs = new LinkedHashMap<String, List<ROI>>();
+        for (ROI roi : sequence.getROIs())
+        {
+            String tag = roi.getProperty(RUN_TAG_PROPERTY);
+            if (tag == null) continue;
+            
+            List<ROI> run = runs.get(tag);
+            if (run == null) runs.put(tag, run = new ArrayList<ROI>());
+            run.add(roi);
+        }
+        
+        published.put(sequence, runs);
+        return runs;
+    }
+    
+    /**
+     * Removes the untagged ROIs published by earlier versions of HK-Means, i.e. all the untagged
+     * ROIs whose name starts with "HK-Means" (including ROIs named so by the user). This is not
+     * done by {@link #publish(Sequence, List, String, boolean)}, and should be requested
+     * explicitly, once per sequence
+     * 
+     * @param sequence
+     *            a sequence
+     * @return the number of removed ROIs
+     */
+    public static int removeLegacyROIs(Sequence sequence)
+    {
+        synchronized (lock)
+        {
+            List<ROI> legacy = new ArrayList<ROI>();
+            
+            for (ROI roi : sequence.getROIs())
+            {
+                String name = roi.getName();
+                if (roi.getProperty(RUN_TAG_PROPERTY) == null && name != null && name.startsWith(LEGACY_NAME_PREFIX)) legacy.add(roi);
+            }
+            
+            if (!legacy.isEmpty()) sequence.removeROIs(legacy, true);
+            return legacy.size();
+        }
+    }
+}
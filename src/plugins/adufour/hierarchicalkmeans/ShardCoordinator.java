@@ -0,0 +1,757 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Point3i;
+
+import icy.file.FileUtil;
+import icy.image.IcyBufferedImage;
+import icy.plugin.PluginDescriptor;
+import icy.plugin.PluginDescriptor.PluginIdent;
+import icy.plugin.PluginLoader;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import loci.formats.ome.OMEXMLMetadataImpl;
+import plugins.adufour.connectedcomponents.ConnectedComponent;
+import plugins.adufour.ezplug.EzStatus;
+import plugins.adufour.filtering.Convolution1D;
+import plugins.adufour.roi.LabelExtractor;
+import plugins.adufour.thresholder.KMeans;
+
+/**
+ * Runs an HK-Means segmentation across several worker processes ({@link ShardWorker}), which
+ * exchange work with this coordinator through a job directory on a local or shared file system
+ * (no other service is required):
+ * <ul>
+ * <li><code>job.properties</code>: the segmentation parameters</li>
+ * <li><code>frames/</code>: the (T, C) work units, i.e. a raw copy of each frame to segment, written
+ * as the workers progress (only a few units ahead of them) and deleted once segmented, plus the
+ * maximum over all frames, on which the minimum intensity constraint is evaluated</li>
+ * <li><code>queue/</code>: the pending units (one empty file per unit and attempt)</li>
+ * <li><code>running/</code>: the units being processed, claimed by atomically moving them from the
+ * queue and tagged with the worker ID</li>
+ * <li><code>workers/</code>: one lock file per worker, locked for as long as the worker is alive
+ * (a unit claimed by a worker whose lock can be acquired is considered lost)</li>
+ * <li><code>results/</code>: the result of each unit, in the {@link HKMeansResultWriter} format</li>
+ * <li><code>errors/</code>: the error log of each failed attempt</li>
+ * </ul>
+ * Failed and lost units are queued again, up to a maximum number of attempts. The results are then
+ * merged in (T, C) order into a single result file, so that objects come out in the same order
+ * (and therefore with the same labels) as with
+ * {@link HKMeans#hKMeans(Sequence, int, int, double, byte, int, int, Double, EzStatus, ThresholdTable, ObjectMeasurements, ExecutionPlan)}
+ * . The merged file is returned as an {@link HKMeansResultReader}, from which the caller reads the
+ * objects one by one (the coordinator never holds all objects in memory).<br>
+ * Workers are started locally by the coordinator, unless disabled via
+ * {@link #setLaunchWorkers(boolean)}, in which case workers can be started manually on any machine
+ * sharing the job directory (the file system must then support file locks).
+ * 
+ * @author Alexandre Dufour
+ */
+public class ShardCoordinator
+{
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    
+    static final String JOB_FILE = "job.properties";
+    
+    static final String STOP_FILE = "stop";
+    
+    static final String RESULT_FILE = "result.hkmr";
+    
+    static final String MAX_PROJECTION = "max";
+    
+    static final String FRAMES = "frames", QUEUE = "queue", RUNNING = "running", WORKERS = "workers", RESULTS = "results", ERRORS = "errors";
+    
+    /**
+     * Interval (in milliseconds) at which the job directory is scanned
+     */
+    static final long POLL_INTERVAL = 100;
+    
+    /**
+     * Maximum number of units staged (i.e. written to the job directory) but not completed yet, per
+     * worker
+     */
+    static final int MAX_STAGED_PER_WORKER = 2;
+    
+    private final File jobDirectory;
+    
+    private final int nbWorkers;
+    
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    
+    private boolean launchWorkers = true;
+    
+    private String workerClassPath = null;
+    
+    private String[] workerOptions = new String[0];
+    
+    private final List<Process> workers = new ArrayList<Process>();
+    
+    /**
+     * @param jobDirectory
+     *            the job directory (must be empty or not exist yet, except for the registration of
+     *            workers started beforehand)
+     * @param nbWorkers
+     *            the number of worker processes to start
+     */
+    public ShardCoordinator(File jobDirectory, int nbWorkers)
+    {
+        this.jobDirectory = jobDirectory;
+        this.nbWorkers = Math.max(1, nbWorkers);
+    }
+    
+    /**
+     * @param maxAttempts
+     *            the number of times a unit is processed before the job is considered failed
+     *            (default: {@value #DEFAULT_MAX_ATTEMPTS})
+     */
+    public void setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+    
+    /**
+     * @param launchWorkers
+     *            <code>true</code> (default) to start the workers locally, <code>false</code> if
+     *            they are started separately (see {@link ShardWorker#main(String[])})
+     */
+    public void setLaunchWorkers(boolean launchWorkers)
+    {
+        this.launchWorkers = launchWorkers;
+    }
+    
+    /**
+     * @param classPath
+     *            the class path of the worker processes, or <code>null</code> (default) to derive
+     *            it from the plug-in descriptors (see {@link #getDefaultClassPath()})
+     */
+    public void setWorkerClassPath(String classPath)
+    {
+        this.workerClassPath = classPath;
+    }
+    
+    /**
+     * @param options
+     *            additional options to pass to the worker JVMs (e.g. "-Xmx4g")
+     */
+    public void setWorkerOptions(String... options)
+    {
+        this.workerOptions = options.clone();
+    }
+    
+    /**
+     * @return the file receiving the merged results of the last job
+     */
+    public File getResultFile()
+    {
+        return new File(jobDirectory, RESULT_FILE);
+    }
+    
+    /**
+     * Performs a hierarchical K-Means segmentation on the input sequence using the worker
+     * processes, and returns the merged result file
+     * 
+     * @param seqIN
+     *            the sequence to segment
+     * @param t
+     *            the time point to process (or -1 to process all time points)
+     * @param c
+     *            the channel to process (or -1 to process all channels)
+     * @param preFilter
+     *            the standard deviation of the Gaussian filter to apply before segmentation (0 for
+     *            none)
+     * @param nbKMeansClasses
+     *            the number of classes to divide the histogram (up to 255)
+     * @param minSize
+     *            the minimum size in pixels of the objects to segment
+     * @param maxSize
+     *            the maximum size in pixels of the objects to segment
+     * @param minIntensity
+     *            the minimum intensity value each object should have (in its corresponding channel)
+     * @param status
+     *            an {@link EzStatus} object to monitor the task progression (or <code>null</code>
+     *            if not available or not needed)
+     * @param plan
+     *            the execution plan (only the sampling stride and pyramid factor are used, since
+     *            each worker plans its own execution). Temporal thresholds are not supported, as
+     *            they make the time points depend on each other
+     * @return the merged result file (see {@link #getResultFile()}), giving access to the objects
+     *         (ROI, color and measurements) and the K-Means thresholds of each processed frame. It
+     *         must be closed by the caller (before calling {@link #deleteJob()})
+     * @throws IOException
+     *             if the job directory cannot be used, or if a unit failed too many times
+     */
+    public HKMeansResultReader hKMeans(Sequence seqIN, int t, int c, double preFilter, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity,
+            EzStatus status, ExecutionPlan plan) throws IOException
+    {
+        if (plan.isTemporal()) throw new IllegalArgumentException("Temporal thresholds cannot be computed by separate processes");
+        
+        // workers started beforehand may already have registered
+        String[] contents = jobDirectory.list();
+        if (contents != null) for (String name : contents)
+            if (!name.equals(WORKERS)) throw new IOException(jobDirectory.getPath() + " is not empty");
+        
+        for (String folder : new String[] { FRAMES, QUEUE, RUNNING, WORKERS, RESULTS, ERRORS })
+        {
+            File directory = new File(jobDirectory, folder);
+            if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory.getPath());
+        }
+        
+        int minT = t >= 0 ? t : 0, maxT = t >= 0 ? t : seqIN.getSizeT() - 1;
+        int minC = c >= 0 ? c : 0, maxC = c >= 0 ? c : seqIN.getSizeC() - 1;
+        
+        final List<int[]> units = new ArrayList<int[]>();
+        for (t = minT; t <= maxT; t++)
+            for (c = minC; c <= maxC; c++)
+                units.add(new int[] { t, c });
+        
+        // number of units (in order) whose results are complete
+        int nbCompleted = 0;
+        
+        try
+        {
+            // 1) publish the job and start the workers (they wait for units to be queued)
+            
+            Properties job = new Properties();
+            job.setProperty("sizeX", String.valueOf(seqIN.getSizeX()));
+            job.setProperty("sizeY", String.valueOf(seqIN.getSizeY()));
+            job.setProperty("sizeZ", String.valueOf(seqIN.getSizeZ()));
+            job.setProperty("dataType", seqIN.getDataType_().name());
+            job.setProperty("pixelSizeX", String.valueOf(seqIN.getPixelSizeX()));
+            job.setProperty("pixelSizeY", String.valueOf(seqIN.getPixelSizeY()));
+            job.setProperty("pixelSizeZ", String.valueOf(seqIN.getPixelSizeZ()));
+            job.setProperty("preFilter", String.valueOf(preFilter));
+            job.setProperty("nbKMeansClasses", String.valueOf(nbKMeansClasses & 0xff));
+            job.setProperty("minSize", String.valueOf(minSize));
+            job.setProperty("maxSize", String.valueOf(maxSize));
+            if (minIntensity != null)
+            {
+                job.setProperty("minIntensity", String.valueOf(minIntensity));
+                
+                // the constraint applies to the maximum over all frames, which workers cannot see
+                if (status != null) status.setMessage("Preparing the maximum intensity projection");
+                File frame = new File(jobDirectory, FRAMES + File.separator + MAX_PROJECTION + ".raw.tmp");
+                writeFrame(getMaxProjection(seqIN), 0, 0, frame);
+                publish(frame, new File(jobDirectory, FRAMES + File.separator + MAX_PROJECTION + ".raw"));
+            }
+            job.setProperty("samplingStride", String.valueOf(plan.getSamplingStride()));
+            job.setProperty("pyramidFactor", String.valueOf(plan.getPyramidFactor()));
+            // the workers only see one channel, hence the color of the ROI of each channel
+            for (c = minC; c <= maxC; c++)
+                job.setProperty("color" + c, String.valueOf(seqIN.getColorMap(c).getDominantColor().brighter().getRGB()));
+            
+            File jobFile = new File(jobDirectory, JOB_FILE + ".tmp");
+            OutputStream out = new FileOutputStream(jobFile);
+            try
+            {
+                job.store(out, "HK-Means sharded job");
+            }
+            finally
+            {
+                out.close();
+            }
+            publish(jobFile, new File(jobDirectory, JOB_FILE));
+            
+            if (launchWorkers)
+            {
+                for (int i = 0; i < nbWorkers; i++)
+                    workers.add(launchWorker(i));
+            }
+            
+            // 2) stream the units to the workers (each unit is queued as soon as its frame is
+            // written, and only a few units are staged ahead of the workers), collect the results,
+            // and queue again the failed units
+            
+            int[] attempts = new int[units.size()];
+            boolean[] done = new boolean[units.size()];
+            int nbStaged = 0, nbDone = 0;
+            int nbLaunches = workers.size();
+            
+            while (nbDone < units.size())
+            {
+                if (nbStaged < units.size() && nbStaged - nbDone < MAX_STAGED_PER_WORKER * nbWorkers)
+                {
+                    int[] tc = units.get(nbStaged);
+                    if (status != null) status.setMessage("Preparing T=" + tc[0] + ", C=" + tc[1]);
+                    
+                    String unit = getUnitName(tc);
+                    File frame = new File(jobDirectory, FRAMES + File.separator + unit + ".raw.tmp");
+                    writeFrame(seqIN, tc[0], tc[1], frame);
+                    publish(frame, getUnitFrameFile(tc));
+                    
+                    enqueue(unit, attempts[nbStaged]);
+                    nbStaged++;
+                }
+                else
+                {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+                
+                // running units, by unit and attempt (the worker ID is the last part of the name)
+                Map<String, String> running = new HashMap<String, String>();
+                for (String name : list(RUNNING))
+                {
+                    int separator = name.lastIndexOf('.');
+                    running.put(name.substring(0, separator), name.substring(separator + 1));
+                }
+                
+                for (int i = 0; i < nbStaged; i++)
+                {
+                    if (done[i]) continue;
+                    
+                    String unit = getUnitName(units.get(i));
+                    String attempt = unit + "." + attempts[i];
+                    
+                    String failure = null;
+                    
+                    if (getUnitResultFile(units.get(i)).exists())
+                    {
+                        done[i] = true;
+                        nbDone++;
+                        
+                        // the frame is not needed anymore
+                        getUnitFrameFile(units.get(i)).delete();
+                    }
+                    else if (new File(jobDirectory, QUEUE + File.separator + attempt).exists())
+                    {
+                        continue;
+                    }
+                    else if (running.containsKey(attempt))
+                    {
+                        String worker = running.get(attempt);
+                        if (isAlive(worker)) continue;
+                        
+                        new File(jobDirectory, RUNNING + File.separator + attempt + "." + worker).delete();
+                        failure = "worker " + worker + " stopped unexpectedly";
+                    }
+                    else
+                    {
+                        File error = new File(jobDirectory, ERRORS + File.separator + attempt + ".log");
+                        if (error.exists()) failure = readFirstLine(error) + " (see " + error.getPath() + ")";
+                    }
+                    
+                    if (failure == null) continue;
+                    
+                    attempts[i]++;
+                    if (attempts[i] >= maxAttempts)
+                    {
+                        throw new IOException("T=" + units.get(i)[0] + ", C=" + units.get(i)[1] + " failed after " + attempts[i] + " attempt(s): " + failure);
+                    }
+                    
+                    System.err.println("[HK-Means] Retrying T=" + units.get(i)[0] + ", C=" + units.get(i)[1] + ": " + failure);
+                    enqueue(unit, attempts[i]);
+                }
+                
+                while (nbCompleted < units.size() && done[nbCompleted])
+                    nbCompleted++;
+                
+                if (status != null && nbStaged == units.size())
+                {
+                    status.setMessage("Processed " + nbDone + "/" + units.size() + " frames");
+                    status.setCompletion(nbDone / (double) units.size());
+                }
+                
+                // replace the workers that exited, unless they keep exiting (e.g. invalid class path)
+                for (int i = 0; i < workers.size(); i++)
+                {
+                    if (workers.get(i).isAlive()) continue;
+                    
+                    if (nbLaunches >= nbWorkers * (maxAttempts + 1))
+                    {
+                        throw new IOException("Worker processes keep exiting, see the logs in " + new File(jobDirectory, WORKERS).getPath());
+                    }
+                    
+                    workers.set(i, launchWorker(i));
+                    nbLaunches++;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            stopWorkers();
+        }
+        
+        // 4) merge the results of the completed units
+        
+        merge(seqIN, units.subList(0, nbCompleted), preFilter, nbKMeansClasses, minSize, maxSize, minIntensity);
+        
+        return new HKMeansResultReader(getResultFile());
+    }
+    
+    /**
+     * Merges the results of the specified units (in order) into the result file, one unit at a time
+     */
+    private void merge(Sequence seqIN, List<int[]> units, double preFilter, byte nbKMeansClasses, int minSize, int maxSize, Double minIntensity) throws IOException
+    {
+        // the thresholds (and their flags) go in the header, i.e. before the objects
+        ThresholdTable thresholds = new ThresholdTable(seqIN.getSizeT(), seqIN.getSizeC());
+        
+        for (int[] unit : units)
+        {
+            HKMeansResultReader shard = new HKMeansResultReader(getUnitResultFile(unit));
+            try
+            {
+                ThresholdTable unitThresholds = shard.getThresholds();
+                double[] values = unitThresholds.getThresholds(0, 0);
+                if (values == null) continue;
+                
+                thresholds.setThresholds(unit[0], unit[1], values, unitThresholds.isSampled(0, 0));
+                thresholds.setAbruptChange(unit[0], unit[1], unitThresholds.isAbruptChange(0, 0));
+            }
+            finally
+            {
+                shard.close();
+            }
+        }
+        
+        HKMeansResultWriter writer = new HKMeansResultWriter(getResultFile(), seqIN, preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, thresholds);
+        try
+        {
+            for (int[] unit : units)
+            {
+                HKMeansResultReader shard = new HKMeansResultReader(getUnitResultFile(unit));
+                try
+                {
+                    for (int object = 0; object < shard.getObjectCount(); object++)
+                        writer.addObject(shard, object, unit[0], unit[1]);
+                }
+                finally
+                {
+                    shard.close();
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+    
+    private File getUnitFrameFile(int[] unit)
+    {
+        return new File(jobDirectory, FRAMES + File.separator + getUnitName(unit) + ".raw");
+    }
+    
+    private File getUnitResultFile(int[] unit)
+    {
+        return new File(jobDirectory, RESULTS + File.separator + getUnitName(unit) + ".hkmr");
+    }
+    
+    /**
+     * Deletes the job directory and all its contents (including the result file)
+     */
+    public void deleteJob()
+    {
+        delete(jobDirectory);
+    }
+    
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children)
+            delete(child);
+        file.delete();
+    }
+    
+    /**
+     * @return the name of the specified (T, C) unit (names sort in processing order)
+     */
+    static String getUnitName(int[] unit)
+    {
+        return String.format("T%06d_C%04d", unit[0], unit[1]);
+    }
+    
+    /**
+     * Renames a fully written file atomically, so that other processes never see it partially
+     * written
+     */
+    static void publish(File source, File target) throws IOException
+    {
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private void enqueue(String unit, int attempt) throws IOException
+    {
+        File file = new File(jobDirectory, QUEUE + File.separator + unit + "." + attempt);
+        if (!file.createNewFile()) throw new IOException("Cannot queue " + file.getPath());
+    }
+    
+    private String[] list(String folder)
+    {
+        String[] names = new File(jobDirectory, folder).list();
+        return names == null ? new String[0] : names;
+    }
+    
+    /**
+     * @return <code>false</code> if the specified worker has released its lock (i.e. exited),
+     *         <code>true</code> otherwise (or if this cannot be checked)
+     */
+    private boolean isAlive(String worker)
+    {
+        File lockFile = new File(jobDirectory, WORKERS + File.separator + worker + ".lock");
+        if (!lockFile.exists()) return false;
+        
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+            try
+            {
+                FileLock lock = raf.getChannel().tryLock();
+                if (lock == null) return true;
+                
+                lock.release();
+                return false;
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (OverlappingFileLockException e)
+        {
+            return true;
+        }
+        catch (IOException e)
+        {
+            return true;
+        }
+    }
+    
+    private static String readFirstLine(File file)
+    {
+        try
+        {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try
+            {
+                return reader.readLine();
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException e)
+        {
+            return "unknown error";
+        }
+    }
+    
+    private Process launchWorker(int index) throws IOException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(Arrays.asList(workerOptions));
+        command.add("-cp");
+        command.add(workerClassPath != null ? workerClassPath : getDefaultClassPath());
+        command.add(ShardWorker.class.getName());
+        command.add(jobDirectory.getAbsolutePath());
+        
+        ProcessBuilder builder = new ProcessBuilder(command);
+        // in Icy, workers start from its folder (where it finds its preferences and plug-ins)
+        if (isRunningInIcy()) builder.directory(new File(FileUtil.getApplicationDirectory()));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(jobDirectory, WORKERS + File.separator + "worker-" + index + ".log"));
+        return builder.start();
+    }
+    
+    /**
+     * Asks the workers to stop after their current unit, and waits for the local ones
+     */
+    private void stopWorkers() throws IOException
+    {
+        new File(jobDirectory, STOP_FILE).createNewFile();
+        
+        for (Process worker : workers)
+        {
+            try
+            {
+                if (!worker.waitFor(10, TimeUnit.SECONDS)) worker.destroy();
+            }
+            catch (InterruptedException e)
+            {
+                worker.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.clear();
+    }
+    
+    /**
+     * @return the class path of the worker processes: the Icy kernel (whose manifest references its
+     *         libraries), followed by the jar of this plug-in and of all the plug-ins it requires,
+     *         as given by the Icy plug-in loader. Outside Icy (e.g. in a development environment),
+     *         the plug-in classes are located from the classes used by the segmentation
+     */
+    static String getDefaultClassPath()
+    {
+        Set<String> entries = new LinkedHashSet<String>();
+        
+        for (Class<?> type : new Class<?>[] { Sequence.class, OMEXMLMetadataImpl.class, Point3i.class })
+            addLocation(entries, type);
+        
+        PluginDescriptor descriptor = isRunningInIcy() ? PluginLoader.getPlugin(HierarchicalKMeans.class.getName()) : null;
+        
+        if (descriptor != null)
+        {
+            addJars(entries, descriptor, new HashSet<String>());
+        }
+        else
+        {
+            for (Class<?> type : new Class<?>[] { ShardWorker.class, EzStatus.class, KMeans.class, LabelExtractor.class, ConnectedComponent.class, Convolution1D.class })
+                addLocation(entries, type);
+        }
+        
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : entries)
+        {
+            if (classPath.length() > 0) classPath.append(File.pathSeparator);
+            classPath.append(entry);
+        }
+        return classPath.toString();
+    }
+    
+    /**
+     * @return <code>true</code> if this plug-in is loaded by Icy (whose plug-ins are loaded by a
+     *         dedicated class loader), <code>false</code> otherwise (e.g. in a development
+     *         environment)
+     */
+    private static boolean isRunningInIcy()
+    {
+        return ShardWorker.class.getClassLoader() != ClassLoader.getSystemClassLoader();
+    }
+    
+    /**
+     * Adds the jar of the specified plug-in and (recursively) of the plug-ins it requires
+     */
+    private static void addJars(Set<String> entries, PluginDescriptor descriptor, Set<String> visited)
+    {
+        if (!visited.add(descriptor.getClassName())) return;
+        
+        String jar = descriptor.getJarFilename();
+        if (jar != null && !jar.isEmpty()) entries.add(new File(jar).getAbsolutePath());
+        
+        for (PluginIdent required : descriptor.getRequired())
+        {
+            PluginDescriptor dependency = PluginLoader.getPlugin(required.getClassName());
+            if (dependency != null) addJars(entries, dependency, visited);
+        }
+    }
+    
+    /**
+     * Adds the location (jar or class folder) of the specified class, if it is a file
+     */
+    private static void addLocation(Set<String> entries, Class<?> type)
+    {
+        CodeSource source = type.getProtectionDomain().getCodeSource();
+        if (source == null) return;
+        
+        try
+        {
+            entries.add(new File(source.getLocation().toURI()).getPath());
+        }
+        catch (URISyntaxException e)
+        {
+            // not a file (the class is then available through the JVM class path)
+        }
+    }
+    
+    /**
+     * @return a single-frame sequence holding the maximum of each voxel over all time points and
+     *         channels of the specified sequence (see
+     *         {@link ExecutionPlan#setIntensityReference(Sequence)})
+     */
+    static Sequence getMaxProjection(Sequence seqIN)
+    {
+        final int sliceSize = seqIN.getSizeX() * seqIN.getSizeY();
+        final DataType dataType = seqIN.getDataType_();
+        
+        Sequence projection = new Sequence("Maximum of " + seqIN.getName());
+        double[] max = new double[sliceSize];
+        
+        for (int z = 0; z < seqIN.getSizeZ(); z++)
+        {
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            
+            for (int t = 0; t < seqIN.getSizeT(); t++)
+                for (int c = 0; c < seqIN.getSizeC(); c++)
+                {
+                    Object data = seqIN.getDataXY(t, z, c);
+                    for (int i = 0; i < sliceSize; i++)
+                    {
+                        double value = Array1DUtil.getValue(data, i, dataType);
+                        if (value > max[i]) max[i] = value;
+                    }
+                }
+            
+            IcyBufferedImage image = new IcyBufferedImage(seqIN.getSizeX(), seqIN.getSizeY(), 1, dataType);
+            Array1DUtil.doubleArrayToArray(max, image.getDataXY(0));
+            projection.setImage(0, z, image);
+        }
+        
+        return projection;
+    }
+    
+    /**
+     * Writes the raw values (big-endian) of the specified frame, slice by slice
+     */
+    private static void writeFrame(Sequence seqIN, int t, int c, File file) throws IOException
+    {
+        final int sliceSize = seqIN.getSizeX() * seqIN.getSizeY();
+        ByteBuffer buffer = ByteBuffer.allocate(sliceSize * seqIN.getDataType_().getSize());
+        
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try
+        {
+            for (int z = 0; z < seqIN.getSizeZ(); z++)
+            {
+                Object data = seqIN.getDataXY(t, z, c);
+                
+                buffer.clear();
+                if (data instanceof byte[]) buffer.put((byte[]) data);
+                else if (data instanceof short[]) buffer.asShortBuffer().put((short[]) data);
+                else if (data instanceof int[]) buffer.asIntBuffer().put((int[]) data);
+                else if (data instanceof long[]) buffer.asLongBuffer().put((long[]) data);
+                else if (data instanceof float[]) buffer.asFloatBuffer().put((float[]) data);
+                else if (data instanceof double[]) buffer.asDoubleBuffer().put((double[]) data);
+                else throw new IllegalArgumentException("Unsupported data type: " + seqIN.getDataType_());
+                
+                buffer.clear();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import icy.image.IcyBufferedImage;
+import icy.main.Icy;
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Worker process of a sharded HK-Means segmentation (see {@link ShardCoordinator}). The worker
+ * repeatedly claims a pending unit from the job directory, segments it and stores its result,
+ * until the coordinator asks it to stop. Several workers (on the same machine or on machines
+ * sharing the job directory) can serve the same job.
+ * 
+ * @author Alexandre Dufour
+ */
+public class ShardWorker
+{
+    /**
+     * Number of workers created in this process (so that workers started in the same process at
+     * the same time get distinct identifiers)
+     */
+    private static final AtomicInteger nbWorkers = new AtomicInteger();
+    
+    private final File jobDirectory;
+    
+    /**
+     * Unique identifier of this worker (process, host, start time and rank in the process)
+     */
+    private final String id;
+    
+    private Properties job = null;
+    
+    /**
+     * The maximum over all frames (read once per job), on which the intensity constraint applies
+     */
+    private Sequence intensityReference = null;
+    
+    /**
+     * @param jobDirectory
+     *            the job directory, as prepared by {@link ShardCoordinator}
+     */
+    public ShardWorker(File jobDirectory)
+    {
+        this.jobDirectory = jobDirectory;
+        this.id = (ManagementFactory.getRuntimeMXBean().getName() + "-" + System.currentTimeMillis() + "-" + nbWorkers.getAndIncrement()).replaceAll("[^A-Za-z0-9-]", "-");
+    }
+    
+    /**
+     * Processes the units of the job until the coordinator asks the workers to stop
+     * 
+     * @throws IOException
+     *             if the job directory cannot be used
+     */
+    public void run() throws IOException
+    {
+        File lockFile = new File(jobDirectory, ShardCoordinator.WORKERS + File.separator + id + ".lock");
+        lockFile.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+        
+        try
+        {
+            // the lock is held (and released by the OS if the process dies) while units are claimed
+            FileLock lock = raf.getChannel().lock();
+            
+            try
+            {
+                while (!new File(jobDirectory, ShardCoordinator.STOP_FILE).exists())
+                {
+                    File claim = job == null && !loadJob() ? null : claim();
+                    
+                    if (claim == null)
+                    {
+                        Thread.sleep(ShardCoordinator.POLL_INTERVAL);
+                    }
+                    else
+                    {
+                        process(claim);
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            raf.close();
+            lockFile.delete();
+        }
+    }
+    
+    private boolean loadJob() throws IOException
+    {
+        File jobFile = new File(jobDirectory, ShardCoordinator.JOB_FILE);
+        if (!jobFile.exists()) return false;
+        
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(jobFile);
+        try
+        {
+            properties.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        job = properties;
+        return true;
+    }
+    
+    /**
+     * Claims the first pending unit, by moving it from the queue to the running units
+     * 
+     * @return the claimed unit, or <code>null</code> if no unit is pending
+     */
+    private File claim()
+    {
+        String[] pending = new File(jobDirectory, ShardCoordinator.QUEUE).list();
+        if (pending == null) return null;
+        
+        Arrays.sort(pending);
+        
+        for (String name : pending)
+        {
+            File claim = new File(jobDirectory, ShardCoordinator.RUNNING + File.separator + name + "." + id);
+            try
+            {
+                ShardCoordinator.publish(new File(jobDirectory, ShardCoordinator.QUEUE + File.separator + name), claim);
+                return claim;
+            }
+            catch (IOException e)
+            {
+                // claimed by another worker
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Segments the specified unit and stores its result (or its error log if it failed). The claim
+     * is only released once either is stored (or the error log failed to be stored), so that a
+     * worker dying in between is detected
+     */
+    private void process(File claim) throws IOException
+    {
+        // claim name: unit.attempt.worker
+        String name = claim.getName();
+        String attempt = name.substring(0, name.lastIndexOf('.'));
+        String unit = attempt.substring(0, attempt.indexOf('.'));
+        
+        try
+        {
+            Sequence frame = readFrame(new File(jobDirectory, ShardCoordinator.FRAMES + File.separator + unit + ".raw"));
+            
+            double preFilter = Double.parseDouble(job.getProperty("preFilter"));
+            byte nbKMeansClasses = (byte) Integer.parseInt(job.getProperty("nbKMeansClasses"));
+            int minSize = Integer.parseInt(job.getProperty("minSize"));
+            int maxSize = Integer.parseInt(job.getProperty("maxSize"));
+            Double minIntensity = job.containsKey("minIntensity") ? Double.valueOf(job.getProperty("minIntensity")) : null;
+            
+            int pyramidFactor = Integer.parseInt(job.getProperty("pyramidFactor"));
+            ExecutionPlan plan = MemoryPlanner.plan(frame, 0, 0, preFilter, pyramidFactor, MemoryPlanner.getAvailableMemory());
+            plan.setSamplingStride(Integer.parseInt(job.getProperty("samplingStride")));
+            
+            if (minIntensity != null)
+            {
+                if (intensityReference == null)
+                    intensityReference = readFrame(new File(jobDirectory, ShardCoordinator.FRAMES + File.separator + ShardCoordinator.MAX_PROJECTION + ".raw"));
+                plan.setIntensityReference(intensityReference);
+            }
+            
+            ThresholdTable thresholds = new ThresholdTable(1, 1);
+            ObjectMeasurements measurements = new ObjectMeasurements();
+            
+            List<ROI> rois = HKMeans.hKMeans(frame, 0, 0, preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, null, thresholds, measurements, plan);
+            
+            // the frame has a single (uncolored) channel: use the color of the original channel
+            int channel = Integer.parseInt(unit.substring(unit.indexOf("_C") + 2));
+            Color color = new Color(Integer.parseInt(job.getProperty("color" + channel)), true);
+            for (ROI roi : rois)
+                roi.setColor(color);
+            
+            File result = new File(jobDirectory, ShardCoordinator.RESULTS + File.separator + unit + "." + id + ".tmp");
+            HKMeansResultWriter.write(result, frame, preFilter, nbKMeansClasses, minSize, maxSize, minIntensity, thresholds, rois, measurements);
+            ShardCoordinator.publish(result, new File(jobDirectory, ShardCoordinator.RESULTS + File.separator + unit + ".hkmr"));
+        }
+        catch (Throwable error)
+        {
+            System.err.println("[HK-Means] " + unit + " failed:");
+            error.printStackTrace();
+            
+            File log = new File(jobDirectory, ShardCoordinator.ERRORS + File.separator + attempt + "." + id + ".tmp");
+            PrintWriter writer = new PrintWriter(log);
+            try
+            {
+                writer.println(error);
+                error.printStackTrace(writer);
+            }
+            finally
+            {
+                writer.close();
+            }
+            ShardCoordinator.publish(log, new File(jobDirectory, ShardCoordinator.ERRORS + File.separator + attempt + ".log"));
+        }
+        finally
+        {
+            // even if the error log cannot be stored (the coordinator then queues the unit again)
+            claim.delete();
+        }
+    }
+    
+    /**
+     * Reads a frame written by the coordinator
+     */
+    private Sequence readFrame(File file) throws IOException
+    {
+        final int width = Integer.parseInt(job.getProperty("sizeX"));
+        final int height = Integer.parseInt(job.getProperty("sizeY"));
+        final int depth = Integer.parseInt(job.getProperty("sizeZ"));
+        final DataType dataType = DataType.valueOf(job.getProperty("dataType"));
+        
+        Sequence frame = new Sequence(file.getName());
+        frame.setPixelSizeX(Double.parseDouble(job.getProperty("pixelSizeX")));
+        frame.setPixelSizeY(Double.parseDouble(job.getProperty("pixelSizeY")));
+        frame.setPixelSizeZ(Double.parseDouble(job.getProperty("pixelSizeZ")));
+        
+        ByteBuffer buffer = ByteBuffer.allocate(width * height * dataType.getSize());
+        
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try
+        {
+            for (int z = 0; z < depth; z++)
+            {
+                buffer.clear();
+                while (buffer.hasRemaining())
+                    if (channel.read(buffer) < 0) throw new IOException(file.getPath() + " is truncated");
+                buffer.clear();
+                
+                IcyBufferedImage image = new IcyBufferedImage(width, height, 1, dataType);
+                Object data = image.getDataXY(0);
+                
+                if (data instanceof byte[]) buffer.get((byte[]) data);
+                else if (data instanceof short[]) buffer.asShortBuffer().get((short[]) data);
+                else if (data instanceof int[]) buffer.asIntBuffer().get((int[]) data);
+                else if (data instanceof long[]) buffer.asLongBuffer().get((long[]) data);
+                else if (data instanceof float[]) buffer.asFloatBuffer().get((float[]) data);
+                else if (data instanceof double[]) buffer.asDoubleBuffer().get((double[]) data);
+                else throw new IllegalArgumentException("Unsupported data type: " + dataType);
+                
+                frame.setImage(0, z, image);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+        
+        return frame;
+    }
+    
+    /**
+     * Starts a worker on the specified job directory in a new process. Since the segmentation
+     * relies on Icy (preferences, plug-in loader, sequences...), Icy is first started in headless
+     * mode, which then runs the worker (see {@link ShardWorkerLauncher}) and exits once the
+     * coordinator asks the workers to stop
+     * 
+     * @param args
+     *            the job directory
+     */
+    public static void main(String[] args)
+    {
+        if (args.length != 1)
+        {
+            System.err.println("Usage: java " + ShardWorker.class.getName() + " <job directory>");
+            System.exit(2);
+        }
+        
+        Icy.main(new String[] { "--headless", "--nosplash", "--execute", ShardWorkerLauncher.class.getName(), "--args", new File(args[0]).getAbsolutePath() });
+    }
+}
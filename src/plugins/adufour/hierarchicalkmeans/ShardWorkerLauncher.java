@@ -0,0 +1,44 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.io.File;
+import java.io.IOException;
+
+import icy.gui.dialog.MessageDialog;
+import icy.main.Icy;
+import icy.plugin.abstract_.PluginActionable;
+
+/**
+ * Runs a {@link ShardWorker} once Icy is started in headless mode, as done by
+ * {@link ShardWorker#main(String[])}, i.e. with:<br>
+ * <code>--headless --execute plugins.adufour.hierarchicalkmeans.ShardWorkerLauncher --args &lt;job directory&gt;</code>
+ * <br>
+ * Icy exits once the worker returns (i.e. once the coordinator asks the workers to stop).
+ * 
+ * @author Alexandre Dufour
+ */
+public class ShardWorkerLauncher extends PluginActionable
+{
+    @Override
+    public void run()
+    {
+        String[] args = Icy.getCommandLinePluginArgs();
+        
+        if (!Icy.getMainInterface().isHeadLess() || args == null || args.length != 1)
+        {
+            String usage = "HK-Means workers are started by the HK-Means plug-in, or in headless mode with: --headless --execute " + getClass().getName()
+                    + " --args <job directory>";
+            if (Icy.getMainInterface().isHeadLess()) System.err.println(usage);
+            else MessageDialog.showDialog("HK-Means worker", usage);
+            return;
+        }
+        
+        try
+        {
+            new ShardWorker(new File(args[0])).run();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
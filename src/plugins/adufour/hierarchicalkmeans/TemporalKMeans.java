@@ -0,0 +1,315 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.Arrays;
+
+import icy.sequence.Sequence;
+
+/**
+ * Computes the K-Means thresholds of consecutive frames of a time-lapse sequence (for a given
+ * channel), seeding each frame with the classes of the previous one.<br>
+ * <br>
+ * Since the intensity distribution usually changes slowly over time:
+ * <ul>
+ * <li>the histogram of each frame is built in a single pass over the intensity range of the
+ * previous frame (the range is only measured again if too many voxels fall outside of it, or if
+ * the frame only spans a small part of it, e.g. after photobleaching),</li>
+ * <li>the K-Means starts from the classes of the previous frame, and thus converges in a few
+ * iterations. Classes also remain consistent from one frame to the next, which helps
+ * tracking.</li>
+ * </ul>
+ * The first frame, frames whose intensity distribution differs from the previous one by more
+ * than a given Kolmogorov-Smirnov distance (i.e. the maximum difference between both cumulative
+ * distributions, see {@link #isAbruptChange()}), and sampled frames whose seeded thresholds are
+ * unstable are clustered from scratch, exactly as frames processed independently. This class is
+ * therefore used through
+ * {@link HistogramKMeans#computeThresholds(Sequence, int, int, TemporalKMeans, ThresholdTable, int, int)}.
+ * Frames must be given in chronological order.
+ * 
+ * @author Alexandre Dufour
+ */
+public class TemporalKMeans
+{
+    /**
+     * Kolmogorov-Smirnov distance above which the intensity distribution of a frame is considered
+     * to have changed abruptly
+     */
+    public static final double DEFAULT_CHANGE_THRESHOLD = 0.1;
+    
+    /**
+     * Fraction of voxels allowed outside the intensity range of the previous frame before the
+     * range is measured again
+     */
+    private static final double MAX_OUTLIER_FRACTION = 0.001;
+    
+    /**
+     * Fraction of the intensity range of the previous frame below which the range of the current
+     * frame is measured again (to keep enough histogram bins within the actual intensities)
+     */
+    private static final double MIN_SPAN_FRACTION = 0.5;
+    
+    private final int nbClasses;
+    
+    private final double changeThreshold;
+    
+    /**
+     * Thresholds of the previous frame (or <code>null</code> for the first frame)
+     */
+    private double[] thresholds;
+    
+    /**
+     * Cumulative intensity distribution of the previous frame
+     */
+    private double[] distribution;
+    
+    private double min, binWidth;
+    
+    private double distance;
+    
+    private boolean abruptChange;
+    
+    private int nbIterations;
+    
+    /**
+     * @param nbClasses
+     *            the number of classes
+     */
+    public TemporalKMeans(int nbClasses)
+    {
+        this(nbClasses, DEFAULT_CHANGE_THRESHOLD);
+    }
+    
+    /**
+     * @param nbClasses
+     *            the number of classes
+     * @param changeThreshold
+     *            the Kolmogorov-Smirnov distance (between 0 and 1) between the intensity
+     *            distributions of consecutive frames above which a frame is flagged as an abrupt
+     *            change
+     */
+    public TemporalKMeans(int nbClasses, double changeThreshold)
+    {
+        this.nbClasses = nbClasses;
+        this.changeThreshold = changeThreshold;
+    }
+    
+    /**
+     * Computes the K-Means thresholds of the next frame, starting from the thresholds of the
+     * previous frame. The thresholds finally retained for this frame must then be given to
+     * {@link #setThresholds(double[])}
+     * 
+     * @param sequence
+     *            the sequence to process
+     * @param t
+     *            the time point to process (after the previously processed one)
+     * @param c
+     *            the channel to process
+     * @param stride
+     *            the sampling stride (1 to use every voxel, see {@link HistogramKMeans})
+     * @return the <code>nbClasses - 1</code> thresholds, or <code>null</code> if the frame should
+     *         be clustered from scratch (first frame, abrupt change, or unstable or too small
+     *         sample)
+     */
+    public double[] computeThresholds(Sequence sequence, int t, int c, int stride)
+    {
+        final int[][] rows = HistogramKMeans.getSample(sequence, stride);
+        
+        // 1) histogram over the range of the previous frame (if any)
+        
+        double newMin = min, newBinWidth = binWidth;
+        double[] evenHistogram = new double[HistogramKMeans.NB_BINS];
+        double[] oddHistogram = new double[HistogramKMeans.NB_BINS];
+        boolean measureRange = true;
+        
+        if (distribution != null)
+        {
+            long outliers = HistogramKMeans.fillHistogram(sequence, t, c, rows, newMin, newBinWidth, evenHistogram, oddHistogram);
+            double[] histogram = HistogramKMeans.merge(evenHistogram, oddHistogram);
+            
+            measureRange = outliers > MAX_OUTLIER_FRACTION * sum(histogram) || getSpan(histogram) < MIN_SPAN_FRACTION * histogram.length;
+        }
+        
+        if (measureRange)
+        {
+            double[] range = HistogramKMeans.getRange(sequence, t, c, rows);
+            newMin = range[0];
+            newBinWidth = range[1] > range[0] ? (range[1] - range[0]) / HistogramKMeans.NB_BINS : 1.0 / HistogramKMeans.NB_BINS;
+            
+            evenHistogram = new double[HistogramKMeans.NB_BINS];
+            oddHistogram = new double[HistogramKMeans.NB_BINS];
+            HistogramKMeans.fillHistogram(sequence, t, c, rows, newMin, newBinWidth, evenHistogram, oddHistogram);
+        }
+        
+        double[] histogram = HistogramKMeans.merge(evenHistogram, oddHistogram);
+        
+        // 2) compare with the distribution of the previous frame
+        
+        double[] newDistribution = cumulate(histogram);
+        
+        distance = 0;
+        if (distribution != null)
+        {
+            for (int bin = 0; bin < newDistribution.length; bin++)
+            {
+                double previous = getCumulativeFrequency(distribution, min, binWidth, newMin + (bin + 1) * newBinWidth);
+                distance = Math.max(distance, Math.abs(newDistribution[bin] - previous));
+            }
+        }
+        abruptChange = distribution != null && distance > changeThreshold;
+        
+        boolean firstFrame = thresholds == null;
+        
+        distribution = newDistribution;
+        min = newMin;
+        binWidth = newBinWidth;
+        nbIterations = 0;
+        
+        if (firstFrame || abruptChange) return null;
+        
+        // 3) cluster from the classes of the previous frame (if the sample is stable)
+        
+        double[] centers = getCenters(histogram, newMin, newBinWidth, thresholds);
+        
+        if (stride > 1)
+        {
+            if (sum(histogram) < HistogramKMeans.MIN_SAMPLE_SIZE) return null;
+            if (!HistogramKMeans.isStable(evenHistogram, oddHistogram, newMin, newBinWidth, nbClasses, centers)) return null;
+        }
+        
+        nbIterations = HistogramKMeans.cluster(histogram, newMin, newBinWidth, centers);
+        
+        double[] newThresholds = new double[nbClasses - 1];
+        for (int k = 0; k < newThresholds.length; k++)
+            newThresholds[k] = (centers[k] + centers[k + 1]) / 2;
+        
+        return newThresholds;
+    }
+    
+    /**
+     * Sets the thresholds retained for the last processed frame, used to seed the next frame
+     * 
+     * @param thresholds
+     *            the <code>nbClasses - 1</code> thresholds of the last processed frame
+     */
+    public void setThresholds(double[] thresholds)
+    {
+        this.thresholds = thresholds.clone();
+    }
+    
+    /**
+     * @return <code>true</code> if the intensity distribution of the last processed frame differs
+     *         abruptly from that of the previous frame
+     */
+    public boolean isAbruptChange()
+    {
+        return abruptChange;
+    }
+    
+    /**
+     * @return the Kolmogorov-Smirnov distance between the intensity distributions of the last
+     *         processed frame and the previous frame (0 for the first frame)
+     */
+    public double getDistance()
+    {
+        return distance;
+    }
+    
+    /**
+     * @return the number of K-Means iterations needed for the last processed frame (0 if it was
+     *         clustered from scratch)
+     */
+    public int getNbIterations()
+    {
+        return nbIterations;
+    }
+    
+    /**
+     * @return the initial class centers of the current frame, i.e. the mean intensity of each class
+     *         delimited by the thresholds of the previous frame (or the middle of the class if it
+     *         is empty)
+     */
+    private static double[] getCenters(double[] histogram, double min, double binWidth, double[] thresholds)
+    {
+        final int nbClasses = thresholds.length + 1;
+        
+        double[] sums = new double[nbClasses];
+        double[] counts = new double[nbClasses];
+        
+        int k = 0;
+        for (int bin = 0; bin < histogram.length; bin++)
+        {
+            double value = min + (bin + 0.5) * binWidth;
+            while (k < nbClasses - 1 && value > thresholds[k])
+                k++;
+            
+            sums[k] += value * histogram[bin];
+            counts[k] += histogram[bin];
+        }
+        
+        double[] centers = new double[nbClasses];
+        for (k = 0; k < nbClasses; k++)
+        {
+            double lower = k == 0 ? min : thresholds[k - 1];
+            double upper = k == nbClasses - 1 ? min + histogram.length * binWidth : thresholds[k];
+            centers[k] = counts[k] > 0 ? sums[k] / counts[k] : (lower + upper) / 2;
+        }
+        Arrays.sort(centers);
+        
+        return centers;
+    }
+    
+    /**
+     * @return the number of bins between the first and the last non-empty bin (inclusive)
+     */
+    private static int getSpan(double[] histogram)
+    {
+        int first = 0, last = histogram.length - 1;
+        while (first < last && histogram[first] == 0)
+            first++;
+        while (last > first && histogram[last] == 0)
+            last--;
+        return last - first + 1;
+    }
+    
+    private static double sum(double[] histogram)
+    {
+        double sum = 0;
+        for (double count : histogram)
+            sum += count;
+        return sum;
+    }
+    
+    /**
+     * @return the normalized cumulative histogram (i.e. the fraction of voxels up to the upper edge
+     *         of each bin)
+     */
+    private static double[] cumulate(double[] histogram)
+    {
+        double total = Math.max(1, sum(histogram));
+        double[] cumulative = new double[histogram.length];
+        
+        double sum = 0;
+        for (int bin = 0; bin < histogram.length; bin++)
+        {
+            sum += histogram[bin];
+            cumulative[bin] = sum / total;
+        }
+        
+        return cumulative;
+    }
+    
+    /**
+     * @return the fraction of voxels below the specified value, interpolated from the specified
+     *         cumulative histogram
+     */
+    private static double getCumulativeFrequency(double[] cumulative, double min, double binWidth, double value)
+    {
+        double position = (value - min) / binWidth;
+        if (position <= 0) return 0;
+        if (position >= cumulative.length) return 1;
+        
+        int bin = (int) position;
+        double lower = bin == 0 ? 0 : cumulative[bin - 1];
+        
+        return lower + (cumulative[bin] - lower) * (position - bin);
+    }
+}
@@ -0,0 +1,135 @@
+package plugins.adufour.hierarchicalkmeans;
+
+/**
+ * Stores the K-Means thresholds computed for each frame (T) and channel (C) of a sequence
+ * 
+ * @author Alexandre Dufour
+ */
+public class ThresholdTable
+{
+    private final int sizeT;
+    
+    private final int sizeC;
+    
+    private final double[][] thresholds;
+    
+    private final boolean[] sampled;
+    
+    private final boolean[] abruptChanges;
+    
+    /**
+     * Creates an empty table for a sequence of the specified dimensions
+     * 
+     * @param sizeT
+     *            the number of time points of the sequence
+     * @param sizeC
+     *            the number of channels of the sequence
+     */
+    public ThresholdTable(int sizeT, int sizeC)
+    {
+        this.sizeT = sizeT;
+        this.sizeC = sizeC;
+        this.thresholds = new double[sizeT * sizeC][];
+        this.sampled = new boolean[sizeT * sizeC];
+        this.abruptChanges = new boolean[sizeT * sizeC];
+    }
+    
+    public int getSizeT()
+    {
+        return sizeT;
+    }
+    
+    public int getSizeC()
+    {
+        return sizeC;
+    }
+    
+    /**
+     * @param t
+     *            a time point
+     * @param c
+     *            a channel
+     * @return the thresholds computed for the specified frame and channel, or <code>null</code>
+     *         if this frame and channel were not processed
+     */
+    public double[] getThresholds(int t, int c)
+    {
+        return thresholds[t * sizeC + c];
+    }
+    
+    /**
+     * Stores the thresholds computed for the specified frame and channel
+     * 
+     * @param t
+     *            a time point
+     * @param c
+     *            a channel
+     * @param values
+     *            the thresholds
+     */
+    public void setThresholds(int t, int c, double[] values)
+    {
+        setThresholds(t, c, values, false);
+    }
+    
+    /**
+     * Stores the thresholds computed for the specified frame and channel
+     * 
+     * @param t
+     *            a time point
+     * @param c
+     *            a channel
+     * @param values
+     *            the thresholds
+     * @param fromSample
+     *            <code>true</code> if the thresholds were computed from a subsample of the frame
+     */
+    public void setThresholds(int t, int c, double[] values, boolean fromSample)
+    {
+        thresholds[t * sizeC + c] = values;
+        sampled[t * sizeC + c] = fromSample;
+    }
+    
+    /**
+     * @param t
+     *            a time point
+     * @param c
+     *            a channel
+     * @return <code>true</code> if the thresholds of the specified frame and channel were computed
+     *         from a subsample, <code>false</code> if they were computed from all voxels
+     */
+    public boolean isSampled(int t, int c)
+    {
+        return sampled[t * sizeC + c];
+    }
+    
+    /**
+     * @param t
+     *            a time point
+     * @param c
+     *            a channel
+     * @return <code>true</code> if the intensity distribution of the specified frame and channel
+     *         differs abruptly from that of the previous time point (temporal mode only, see
+     *         {@link TemporalKMeans})
+     */
+    public boolean isAbruptChange(int t, int c)
+    {
+        return abruptChanges[t * sizeC + c];
+    }
+    
+    /**
+     * Flags (or not) the specified frame and channel as an abrupt change of intensity distribution
+     * 
+     * @param t
+     *            a time point
+     * @param c
+     *            a channel
+     * @param abruptChange
+     *            <code>true</code> if the intensity distribution differs abruptly from that of the
+     *            previous time point
+     */
+    public void setAbruptChange(int t, int c, boolean abruptChange)
+    {
+        abruptChanges[t * sizeC + c] = abruptChange;
+    }
+}
@@ -0,0 +1,1121 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import javax.vecmath.Point3i;
+
+import icy.image.IcyBufferedImage;
+import icy.roi.BooleanMask2D;
+import icy.roi.ROI;
+import icy.roi.ROI2D;
+import icy.roi.ROI3D;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.connectedcomponents.ConnectedComponent;
+import plugins.adufour.filtering.ConvolutionException;
+
+/**
+ * Checks that the HK-Means engines (i.e. the various execution plans of
+ * {@link HKMeans#hKMeans(Sequence, int, int, double, byte, int, int, Double, plugins.adufour.ezplug.EzStatus, ThresholdTable, ObjectMeasurements, ExecutionPlan)}
+ * , the legacy {@link ConnectedComponent} path and the sharded path of {@link ShardCoordinator}, run
+ * end to end with worker processes)
+ * extract the same objects as the {@link ReferenceHKMeans reference implementation}, and that
+ * they remain within their {@link PerformanceBudget performance budget}.<br>
+ * <br>
+ * Every frame is first checked against the reference thresholds (i.e. the original K-Means on a
+ * full scan): engines computing exact thresholds must find the very same thresholds, while engines
+ * computing approximate thresholds (from a subsample, or seeded with the previous frame) must not
+ * drift by more than {@link #MAX_THRESHOLD_DRIFT}. The objects of each frame are then compared one
+ * by one with those of the reference, extracted with the thresholds of the engine (so that
+ * approximate thresholds do not hide extraction errors): both label images must match up to a
+ * renumbering of the objects, and matching objects must have the same size and class. Frames where
+ * a voxel lies exactly on a threshold are skipped, since the class of such voxels is a matter of
+ * convention. Objects are compared on randomized synthetic 2D and 3D sequences of every data type.
+ * <br>
+ * <br>
+ * Engines are also checked on frames large enough to be sampled (at least
+ * {@link HistogramKMeans#MIN_SAMPLE_SIZE} sampled voxels), both dense and sparse (see
+ * {@link #createSparseSequence(DataType, int, int, int, int, long)}), to make sure that each engine
+ * takes its own path: engines sampling the frames must report sampled thresholds (see
+ * {@link ThresholdTable#isSampled(int, int)}) for some of these frames, and coarse-to-fine engines
+ * must extract some of these frames within their candidate regions (see
+ * {@link ExecutionProfile#getRefinedFrameCount()}), rather than falling back to the full-scan or
+ * full-frame paths.
+ * <br>
+ * <br>
+ * The legacy path is also compared with the {@link BaselineHKMeans baseline} it replaced (based on
+ * the Connected Components plug-in): both must return the same components in the same order, and
+ * the same labeled output.
+ * <br>
+ * <br>
+ * Run {@link #main(String[])} to check all engines: the process exits with a non-zero status if
+ * any engine fails, so that it can be used as a local regression check. This class belongs to the
+ * test sources, and is not exported with the plug-in.
+ * 
+ * @author Alexandre Dufour
+ */
+public class EquivalenceOracle
+{
+    /**
+     * Data types of the synthetic sequences
+     */
+    public static final DataType[] DATA_TYPES = { DataType.UBYTE, DataType.BYTE, DataType.USHORT, DataType.SHORT, DataType.UINT, DataType.INT, DataType.FLOAT,
+            DataType.DOUBLE };
+    
+    /**
+     * Maximum difference between approximate thresholds and the reference thresholds, as a
+     * fraction of the intensity range of the frame (i.e. about 5 histogram bins)
+     */
+    public static final double MAX_THRESHOLD_DRIFT = 0.02;
+    
+    /**
+     * Intensity decay of the synthetic sequences from one time point to the next
+     */
+    public static final double BLEACHING = 0.95;
+    
+    /**
+     * Outcome of the comparison of an engine with the reference implementation
+     */
+    public static class Comparison
+    {
+        public final List<String> mismatches = new ArrayList<String>();
+        
+        public int nbFrames;
+        
+        public int nbSkippedFrames;
+        
+        public int nbObjects;
+        
+        /**
+         * Number of frames whose thresholds were computed from a subsample
+         */
+        public int nbSampledFrames;
+        
+        /**
+         * Number of frames extracted within their candidate regions (coarse-to-fine mode)
+         */
+        public int nbRefinedFrames;
+        
+        /**
+         * Adds the counts and mismatches of the specified comparison (with mismatches prefixed by
+         * the specified name) to this one
+         */
+        void add(String name, Comparison comparison)
+        {
+            nbFrames += comparison.nbFrames;
+            nbSkippedFrames += comparison.nbSkippedFrames;
+            nbObjects += comparison.nbObjects;
+            nbSampledFrames += comparison.nbSampledFrames;
+            nbRefinedFrames += comparison.nbRefinedFrames;
+            
+            for (String mismatch : comparison.mismatches)
+                mismatches.add(name + ", " + mismatch);
+        }
+        
+        public boolean isEquivalent()
+        {
+            return mismatches.isEmpty();
+        }
+    }
+    
+    /**
+     * Objects and thresholds found by an engine on the first channel of a sequence
+     */
+    public static class Output
+    {
+        /**
+         * Objects of each time point (with class -1 if the engine does not report it)
+         */
+        public final ReferenceHKMeans.Result[] frames;
+        
+        /**
+         * Thresholds of each frame, or <code>null</code> if the engine does not report them (it
+         * then uses the reference thresholds)
+         */
+        public final ThresholdTable thresholds;
+        
+        /**
+         * Description of each inconsistency of the output itself (e.g. objects overlapping each
+         * other)
+         */
+        public final List<String> errors = new ArrayList<String>();
+        
+        Output(int sizeT, ThresholdTable thresholds)
+        {
+            this.frames = new ReferenceHKMeans.Result[sizeT];
+            this.thresholds = thresholds;
+        }
+    }
+    
+    /**
+     * An HK-Means engine under test
+     */
+    public static abstract class Engine
+    {
+        public final String name;
+        
+        /**
+         * The execution plan of the engine (or <code>null</code> for the legacy path), which
+         * determines the paths the engine must take on large frames
+         */
+        public final ExecutionPlan plan;
+        
+        /**
+         * <code>true</code> if the engine computes approximate thresholds (from a subsample, or
+         * seeded with the previous frame), which are then only checked for drift
+         */
+        public final boolean approximateThresholds;
+        
+        /**
+         * The performance budget of the engine, or <code>null</code> if not checked
+         */
+        public final PerformanceBudget budget;
+        
+        protected Engine(String name, ExecutionPlan plan, boolean approximateThresholds, PerformanceBudget budget)
+        {
+            this.name = name;
+            this.plan = plan;
+            this.approximateThresholds = approximateThresholds;
+            this.budget = budget;
+        }
+        
+        /**
+         * @return <code>true</code> if the engine checks the minimum intensity of each object in
+         *         its own frame (as the legacy path does), rather than over all time points and
+         *         channels
+         */
+        public boolean checksFrameIntensity()
+        {
+            return false;
+        }
+        
+        /**
+         * Segments the first channel of every time point of the specified sequence (no pre-filter)
+         * 
+         * @param profile
+         *            the profile receiving the time spent in each stage and the number of refined
+         *            frames (left empty if the engine cannot be profiled)
+         */
+        public abstract Output segment(Sequence sequence, byte nbClasses, int minSize, int maxSize, Double minIntensity, ExecutionProfile profile)
+                throws Exception;
+    }
+    
+    /**
+     * Engine running the specified execution plan
+     */
+    public static Engine createEngine(String name, final ExecutionPlan plan)
+    {
+        boolean approximate = plan.getSamplingStride() > 1 || plan.isTemporal();
+        
+        return new Engine(name, plan, approximate, PerformanceBudget.getDefault())
+        {
+            @Override
+            public Output segment(Sequence sequence, byte nbClasses, int minSize, int maxSize, Double minIntensity, ExecutionProfile profile)
+            {
+                ThresholdTable thresholds = new ThresholdTable(sequence.getSizeT(), sequence.getSizeC());
+                ObjectMeasurements measurements = new ObjectMeasurements();
+                
+                plan.setProfile(profile);
+                try
+                {
+                    List<ROI> rois = HKMeans.hKMeans(sequence, -1, 0, 0, nbClasses, minSize, maxSize, minIntensity, null, thresholds, measurements, plan);
+                    return getOutput(sequence, rois, measurements, thresholds);
+                }
+                finally
+                {
+                    plan.setProfile(null);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Engine running the legacy path, i.e.
+     * {@link HKMeans#hKMeans(Sequence, double, int, int, int, Double, Sequence)} (which does not
+     * report thresholds nor classes, and cannot be profiled)
+     */
+    @SuppressWarnings("deprecation")
+    public static Engine createLegacyEngine()
+    {
+        return new Engine("legacy (connected components)", null, false, PerformanceBudget.getDefault())
+        {
+            @Override
+            public boolean checksFrameIntensity()
+            {
+                return true;
+            }
+            
+            @Override
+            public Output segment(Sequence sequence, byte nbClasses, int minSize, int maxSize, Double minIntensity, ExecutionProfile profile) throws Exception
+            {
+                List<ConnectedComponent> components = HKMeans.hKMeans(sequence, 0, nbClasses, minSize, maxSize, minIntensity, null);
+                return getOutput(sequence, components);
+            }
+        };
+    }
+    
+    /**
+     * Engine running the sharded path ({@link ShardCoordinator}) end to end, with the specified
+     * number of workers, either started as separate processes by the coordinator (with its default
+     * class path) or running in the current process. In addition to the objects, the merged result
+     * must carry the same thresholds (including their flags) and ROI colors as an in-process run of
+     * the same plan. The time of this engine is dominated by the polling of the job directory (and
+     * the start of the workers), hence it has no performance budget.
+     */
+    public static Engine createShardedEngine(String name, final int nbWorkers, final boolean workerProcesses, final ExecutionPlan plan)
+    {
+        return new Engine(name, plan, plan.getSamplingStride() > 1, null)
+        {
+            @Override
+            public Output segment(Sequence sequence, byte nbClasses, int minSize, int maxSize, Double minIntensity, ExecutionProfile profile) throws Exception
+            {
+                final File jobDirectory = Files.createTempDirectory("hkmeans-oracle").toFile();
+                
+                ShardCoordinator coordinator = new ShardCoordinator(jobDirectory, nbWorkers);
+                coordinator.setLaunchWorkers(workerProcesses);
+                
+                Thread[] workers = new Thread[workerProcesses ? 0 : nbWorkers];
+                for (int i = 0; i < workers.length; i++)
+                {
+                    workers[i] = new Thread("HK-Means oracle worker " + i)
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try
+                            {
+                                new ShardWorker(jobDirectory).run();
+                            }
+                            catch (IOException e)
+                            {
+                                e.printStackTrace();
+                            }
+                        }
+                    };
+                    workers[i].start();
+                }
+                
+                List<ROI> rois = new ArrayList<ROI>();
+                ObjectMeasurements measurements = new ObjectMeasurements();
+                ThresholdTable thresholds;
+                
+                try
+                {
+                    HKMeansResultReader result = coordinator.hKMeans(sequence, -1, 0, 0, nbClasses, minSize, maxSize, minIntensity, null, plan);
+                    try
+                    {
+                        for (int object = 0; object < result.getObjectCount(); object++)
+                        {
+                            rois.add(result.getROI(object));
+                            measurements.read(result, object);
+                        }
+                        thresholds = result.getThresholds();
+                    }
+                    finally
+                    {
+                        result.close();
+                    }
+                }
+                finally
+                {
+                    for (Thread worker : workers)
+                        worker.join();
+                    coordinator.deleteJob();
+                }
+                
+                Output output = getOutput(sequence, rois, measurements, thresholds);
+                
+                // compare with an in-process run
+                
+                ThresholdTable expectedThresholds = new ThresholdTable(sequence.getSizeT(), sequence.getSizeC());
+                List<ROI> expectedROIs = HKMeans.hKMeans(sequence, -1, 0, 0, nbClasses, minSize, maxSize, minIntensity, null, expectedThresholds, null, plan);
+                
+                for (int t = 0; t < sequence.getSizeT(); t++)
+                {
+                    if (!Arrays.equals(thresholds.getThresholds(t, 0), expectedThresholds.getThresholds(t, 0))
+                            || thresholds.isSampled(t, 0) != expectedThresholds.isSampled(t, 0)
+                            || thresholds.isAbruptChange(t, 0) != expectedThresholds.isAbruptChange(t, 0))
+                    {
+                        output.errors.add("T=" + t + ": merged thresholds or flags differ from an in-process run");
+                    }
+                }
+                
+                for (int i = 0; i < Math.min(rois.size(), expectedROIs.size()); i++)
+                {
+                    Color color = rois.get(i).getColor(), expected = expectedROIs.get(i).getColor();
+                    if (color == null ? expected != null : !color.equals(expected))
+                    {
+                        output.errors.add("object #" + (i + 1) + " has color " + color + " instead of " + expected);
+                    }
+                }
+                
+                return output;
+            }
+        };
+    }
+    
+    /**
+     * @return the engines to check (new instances at each call)
+     */
+    public static List<Engine> getEngines()
+    {
+        int nbCores = Runtime.getRuntime().availableProcessors();
+        
+        List<Engine> engines = new ArrayList<Engine>();
+        
+        engines.add(createEngine("single thread", new ExecutionPlan(1, 0, Long.MAX_VALUE)));
+        engines.add(createEngine("parallel", new ExecutionPlan(nbCores, 0, Long.MAX_VALUE)));
+        
+        ExecutionPlan sampled = new ExecutionPlan(1, 0, Long.MAX_VALUE);
+        sampled.setSamplingStride(HistogramKMeans.DEFAULT_SAMPLING_STRIDE);
+        engines.add(createEngine("sampled thresholds", sampled));
+        
+        ExecutionPlan temporal = new ExecutionPlan(nbCores, 0, Long.MAX_VALUE);
+        temporal.setTemporal(true);
+        engines.add(createEngine("temporal thresholds", temporal));
+        
+        ExecutionPlan sampledTemporal = new ExecutionPlan(nbCores, 0, Long.MAX_VALUE);
+        sampledTemporal.setSamplingStride(HistogramKMeans.DEFAULT_SAMPLING_STRIDE);
+        sampledTemporal.setTemporal(true);
+        engines.add(createEngine("sampled temporal thresholds", sampledTemporal));
+        
+        ExecutionPlan coarseToFine = new ExecutionPlan(1, 0, Long.MAX_VALUE);
+        coarseToFine.setPyramidFactor(CandidateRegions.DEFAULT_FACTOR);
+        engines.add(createEngine("coarse-to-fine", coarseToFine));
+        
+        ExecutionPlan parallelCoarseToFine = new ExecutionPlan(nbCores, 0, Long.MAX_VALUE);
+        parallelCoarseToFine.setPyramidFactor(CandidateRegions.DEFAULT_FACTOR);
+        engines.add(createEngine("coarse-to-fine (parallel)", parallelCoarseToFine));
+        
+        engines.add(createLegacyEngine());
+        ExecutionPlan sharded = new ExecutionPlan(1, 0, Long.MAX_VALUE);
+        engines.add(createShardedEngine("sharded (2 worker processes)", 2, true, sharded));
+        
+        ExecutionPlan shardedSampled = new ExecutionPlan(1, 0, Long.MAX_VALUE);
+        shardedSampled.setSamplingStride(HistogramKMeans.DEFAULT_SAMPLING_STRIDE);
+        engines.add(createShardedEngine("sharded, sampled thresholds (2 in-process workers)", 2, false, shardedSampled));
+        
+        return engines;
+    }
+    
+    /**
+     * @return the intensity range (min, max) of the synthetic sequences of the specified data type
+     */
+    public static double[] getRange(DataType dataType)
+    {
+        switch (dataType)
+        {
+        case UBYTE:
+            return new double[] { 0, 255 };
+        case BYTE:
+            return new double[] { -128, 127 };
+        case USHORT:
+            return new double[] { 0, 65535 };
+        case SHORT:
+            return new double[] { -32768, 32767 };
+        case UINT:
+            return new double[] { 0, 1000000 };
+        case INT:
+            return new double[] { -1000000, 1000000 };
+        default:
+            return new double[] { 0, 1 };
+        }
+    }
+    
+    /**
+     * Creates a synthetic sequence (single channel) made of blobs of various intensities on a noisy
+     * background. Some blobs have a brighter core, so that objects are found at several levels of
+     * the hierarchy. Blobs drift slowly over time, and fade by {@link #BLEACHING} at each time point
+     * (so that the intensity range of each frame shrinks, as with photobleaching).
+     * 
+     * @param dataType
+     *            the data type of the sequence
+     * @param width
+     *            the width of the sequence
+     * @param height
+     *            the height of the sequence
+     * @param depth
+     *            the depth of the sequence
+     * @param sizeT
+     *            the number of time points of the sequence
+     * @param seed
+     *            the seed of the random generator
+     * @return the synthetic sequence
+     */
+    public static Sequence createSyntheticSequence(DataType dataType, int width, int height, int depth, int sizeT, long seed)
+    {
+        Random random = new Random(seed);
+        
+        // blobs: center (x, y, z), radii (x, y, z), level, core level (or 0)
+        int nbBlobs = 4 + random.nextInt(8);
+        double[][] blobs = new double[nbBlobs][];
+        for (int i = 0; i < nbBlobs; i++)
+        {
+            double radiusXY = 2 + random.nextDouble() * Math.min(width, height) / 8.0;
+            double radiusZ = depth == 1 ? 1 : 1 + random.nextDouble() * depth / 3.0;
+            double level = 0.35 + 0.2 * random.nextInt(3);
+            double core = random.nextBoolean() ? level + 0.15 : 0;
+            blobs[i] = new double[] { random.nextDouble() * width, random.nextDouble() * height, random.nextDouble() * depth, radiusXY, radiusXY, radiusZ, level, core };
+        }
+        
+        return render("Synthetic " + dataType + " (seed " + seed + ")", dataType, width, height, depth, sizeT, blobs, 0.1, 0.03, random);
+    }
+    
+    /**
+     * Creates a sparse synthetic sequence (single channel), made of many small blobs and a single
+     * large one on a constant background, so that the candidate regions of each frame cover a small
+     * fraction of it (see {@link CandidateRegions}). As in
+     * {@link #createSyntheticSequence(DataType, int, int, int, int, long)}, some blobs have a brighter
+     * core, blobs drift slowly over time and fade by {@link #BLEACHING} at each time point.
+     * 
+     * @param dataType
+     *            the data type of the sequence
+     * @param width
+     *            the width of the sequence
+     * @param height
+     *            the height of the sequence
+     * @param depth
+     *            the depth of the sequence
+     * @param sizeT
+     *            the number of time points of the sequence
+     * @param seed
+     *            the seed of the random generator
+     * @return the synthetic sequence
+     */
+    public static Sequence createSparseSequence(DataType dataType, int width, int height, int depth, int sizeT, long seed)
+    {
+        Random random = new Random(seed);
+        
+        // blobs: center (x, y, z), radii (x, y, z), level, core level (or 0)
+        int nbBlobs = 24 + random.nextInt(16);
+        double[][] blobs = new double[nbBlobs][];
+        for (int i = 0; i < nbBlobs; i++)
+        {
+            // the first blob is the large one
+            double radiusXY = i == 0 ? Math.min(width, height) / 6.0 : 2 + random.nextDouble() * 4;
+            double radiusZ = depth == 1 ? 1 : 1 + random.nextDouble() * depth / 3.0;
+            double level = 0.35 + 0.2 * random.nextInt(3);
+            double core = random.nextBoolean() ? level + 0.15 : 0;
+            blobs[i] = new double[] { random.nextDouble() * width, random.nextDouble() * height, random.nextDouble() * depth, radiusXY, radiusXY, radiusZ, level, core };
+        }
+        
+        return render("Sparse " + dataType + " (seed " + seed + ")", dataType, width, height, depth, sizeT, blobs, 0.1, 0, random);
+    }
+    
+    /**
+     * Renders the specified blobs (center (x, y, z), radii (x, y, z), level, core level or 0) on a
+     * background of the specified level and noise (as fractions of the intensity range)
+     */
+    private static Sequence render(String name, DataType dataType, int width, int height, int depth, int sizeT, double[][] blobs, double background, double noise,
+            Random random)
+    {
+        double[] range = getRange(dataType);
+        double min = range[0], max = range[1];
+        
+        Sequence sequence = new Sequence(name);
+        
+        for (int t = 0; t < sizeT; t++)
+            for (int z = 0; z < depth; z++)
+            {
+                IcyBufferedImage image = new IcyBufferedImage(width, height, 1, dataType);
+                Object data = image.getDataXY(0);
+                
+                int offset = 0;
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++, offset++)
+                    {
+                        double value = background + noise * random.nextGaussian();
+                        
+                        for (double[] blob : blobs)
+                        {
+                            double dx = (x - blob[0] - t) / blob[3];
+                            double dy = (y - blob[1]) / blob[4];
+                            double dz = (z - blob[2]) / blob[5];
+                            double distance = dx * dx + dy * dy + (depth == 1 ? 0 : dz * dz);
+                            
+                            if (distance < 1) value = Math.max(value, blob[6] + 0.02 * random.nextGaussian());
+                            if (distance < 0.25 && blob[7] > 0) value = Math.max(value, blob[7] + 0.02 * random.nextGaussian());
+                        }
+                        
+                        value *= Math.pow(BLEACHING, t);
+                        value = min + Math.max(0, Math.min(1, value)) * (max - min);
+                        if (!dataType.isFloat()) value = Math.round(value);
+                        
+                        Array1DUtil.setValue(data, offset, dataType, value);
+                    }
+                
+                sequence.setImage(t, z, image);
+            }
+        
+        return sequence;
+    }
+    
+    /**
+     * @return a sequence whose channels are the (first) channels of the specified sequences, which
+     *         must have the same size and data type
+     */
+    public static Sequence stackChannels(Sequence... channels)
+    {
+        final Sequence first = channels[0];
+        final int width = first.getSizeX();
+        final int height = first.getSizeY();
+        
+        Sequence stack = new Sequence(first.getName() + " (" + channels.length + " channels)");
+        
+        for (int t = 0; t < first.getSizeT(); t++)
+            for (int z = 0; z < first.getSizeZ(); z++)
+            {
+                IcyBufferedImage image = new IcyBufferedImage(width, height, channels.length, first.getDataType_());
+                for (int c = 0; c < channels.length; c++)
+                    System.arraycopy(channels[c].getDataXY(t, z, 0), 0, image.getDataXY(c), 0, width * height);
+                stack.setImage(t, z, image);
+            }
+        
+        return stack;
+    }
+    
+    /**
+     * Segments the specified sequence (first channel, all time points, no pre-filter) with the
+     * specified engine, and compares each frame with the reference implementation
+     * 
+     * @param sequence
+     *            the sequence to segment
+     * @param nbClasses
+     *            the number of K-Means classes
+     * @param minSize
+     *            the minimum size in voxels of the objects
+     * @param maxSize
+     *            the maximum size in voxels of the objects
+     * @param minIntensity
+     *            the minimum intensity value each object should have (or <code>null</code>)
+     * @param engine
+     *            the engine to check
+     * @return the outcome of the comparison
+     */
+    public static Comparison compare(Sequence sequence, byte nbClasses, int minSize, int maxSize, Double minIntensity, Engine engine)
+    {
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        final int depth = sequence.getSizeZ();
+        
+        Comparison comparison = new Comparison();
+        
+        Output output;
+        ExecutionProfile profile = new ExecutionProfile();
+        try
+        {
+            output = engine.segment(sequence, nbClasses, minSize, maxSize, minIntensity, profile);
+        }
+        catch (Exception e)
+        {
+            comparison.mismatches.add("segmentation failed: " + e);
+            return comparison;
+        }
+        
+        comparison.mismatches.addAll(output.errors);
+        comparison.nbRefinedFrames = profile.getRefinedFrameCount();
+        
+        // the values on which the intensity constraint is checked (null: those of each frame)
+        double[] filterValues = minIntensity == null || engine.checksFrameIntensity() ? null : ReferenceHKMeans.getMaxValues(sequence);
+        
+        for (int t = 0; t < sequence.getSizeT(); t++)
+        {
+            comparison.nbFrames++;
+            
+            double[] values = ReferenceHKMeans.getValues(sequence, t, 0);
+            
+            // 1) thresholds
+            
+            double[] expected = ReferenceHKMeans.computeThresholds(sequence, t, 0, nbClasses);
+            double[] frameThresholds = output.thresholds == null ? expected : output.thresholds.getThresholds(t, 0);
+            
+            if (frameThresholds == null)
+            {
+                comparison.mismatches.add("T=" + t + ": frame was not processed");
+                continue;
+            }
+            
+            if (output.thresholds != null && output.thresholds.isSampled(t, 0)) comparison.nbSampledFrames++;
+            
+            if (engine.approximateThresholds)
+            {
+                comparison.mismatches.addAll(checkDrift(t, frameThresholds, expected, values));
+            }
+            else if (!Arrays.equals(frameThresholds, expected))
+            {
+                comparison.mismatches.add("T=" + t + ": thresholds are " + Arrays.toString(frameThresholds) + " instead of " + Arrays.toString(expected));
+                continue;
+            }
+            
+            // 2) objects (skipping frames where a voxel lies on a threshold)
+            
+            boolean tie = false;
+            for (double value : values)
+                for (double threshold : frameThresholds)
+                    if (value == threshold) tie = true;
+            
+            if (tie)
+            {
+                comparison.nbSkippedFrames++;
+                continue;
+            }
+            
+            ReferenceHKMeans.Result reference = ReferenceHKMeans.extract(values, width, height, depth, frameThresholds, minSize, maxSize, minIntensity, filterValues);
+            ReferenceHKMeans.Result result = output.frames[t];
+            
+            comparison.nbObjects += result.getCount();
+            
+            if (result.getCount() != reference.getCount())
+            {
+                comparison.mismatches.add("T=" + t + ": " + result.getCount() + " objects found instead of " + reference.getCount());
+                continue;
+            }
+            
+            // both label images must match up to a renumbering
+            
+            int[] referenceToEngine = new int[reference.getCount() + 1];
+            int[] engineToReference = new int[result.getCount() + 1];
+            Arrays.fill(referenceToEngine, -1);
+            Arrays.fill(engineToReference, -1);
+            referenceToEngine[0] = engineToReference[0] = 0;
+            
+            for (int i = 0; i < values.length; i++)
+            {
+                int r = reference.labels[i], e = result.labels[i];
+                
+                if (referenceToEngine[r] == -1 && engineToReference[e] == -1)
+                {
+                    referenceToEngine[r] = e;
+                    engineToReference[e] = r;
+                }
+                else if (referenceToEngine[r] != e || engineToReference[e] != r)
+                {
+                    int x = i % width, y = (i / width) % height, z = i / (width * height);
+                    comparison.mismatches.add("T=" + t + ": labels differ at (" + x + ", " + y + ", " + z + ")");
+                    break;
+                }
+            }
+            
+            // matching objects must have the same size and class
+            
+            for (int r = 1; r <= reference.getCount(); r++)
+            {
+                int e = referenceToEngine[r];
+                if (e <= 0) continue;
+                
+                if (result.sizes[e - 1] != reference.sizes[r - 1])
+                {
+                    comparison.mismatches.add("T=" + t + ": object #" + e + " has " + result.sizes[e - 1] + " voxels instead of " + reference.sizes[r - 1]);
+                }
+                if (result.classes[e - 1] != -1 && result.classes[e - 1] != reference.classes[r - 1])
+                {
+                    comparison.mismatches.add("T=" + t + ": object #" + e + " belongs to class " + result.classes[e - 1] + " instead of " + reference.classes[r - 1]);
+                }
+            }
+        }
+        
+        return comparison;
+    }
+    
+    /**
+     * @return a description of each threshold drifting from the reference threshold by more than
+     *         {@link #MAX_THRESHOLD_DRIFT} (empty if none)
+     */
+    private static List<String> checkDrift(int t, double[] thresholds, double[] expected, double[] values)
+    {
+        List<String> drifts = new ArrayList<String>();
+        
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double value : values)
+        {
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+        
+        for (int i = 0; i < expected.length; i++)
+        {
+            double drift = Math.abs(thresholds[i] - expected[i]) / Math.max(max - min, Double.MIN_VALUE);
+            if (drift > MAX_THRESHOLD_DRIFT)
+            {
+                drifts.add("T=" + t + ": threshold #" + i + " is " + thresholds[i] + " instead of " + expected[i] + " (" + String.format("%.1f", drift * 100)
+                        + "% of the range)");
+            }
+        }
+        
+        return drifts;
+    }
+    
+    /**
+     * Gathers the objects found by an engine (as ROIs) into one label image per time point
+     */
+    static Output getOutput(Sequence sequence, List<ROI> rois, ObjectMeasurements measurements, ThresholdTable thresholds)
+    {
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        final int nbVoxels = width * height * sequence.getSizeZ();
+        
+        Output output = new Output(sequence.getSizeT(), thresholds);
+        
+        for (int t = 0; t < sequence.getSizeT(); t++)
+        {
+            int[] labels = new int[nbVoxels];
+            List<Integer> rows = new ArrayList<Integer>();
+            
+            for (int row = 0; row < measurements.getRowCount(); row++)
+            {
+                if (measurements.getT(row) != t) continue;
+                
+                rows.add(row);
+                if (!paint(rois.get(row), labels, width, height, rows.size()))
+                {
+                    output.errors.add("T=" + t + ": object #" + rows.size() + " overlaps another object");
+                }
+            }
+            
+            int[] sizes = new int[rows.size()];
+            int[] classes = new int[rows.size()];
+            for (int i = 0; i < rows.size(); i++)
+            {
+                sizes[i] = measurements.getSize(rows.get(i));
+                classes[i] = measurements.getClassID(rows.get(i));
+            }
+            
+            output.frames[t] = new ReferenceHKMeans.Result(labels, sizes, classes, thresholds.getThresholds(t, 0));
+        }
+        
+        return output;
+    }
+    
+    /**
+     * Gathers the objects found by the legacy engine (as connected components) into one label image
+     * per time point
+     */
+    static Output getOutput(Sequence sequence, List<ConnectedComponent> components)
+    {
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        final int nbVoxels = width * height * sequence.getSizeZ();
+        
+        Output output = new Output(sequence.getSizeT(), null);
+        
+        for (int t = 0; t < sequence.getSizeT(); t++)
+        {
+            int[] labels = new int[nbVoxels];
+            List<Integer> sizes = new ArrayList<Integer>();
+            
+            for (ConnectedComponent component : components)
+            {
+                if (component.getT() != t) continue;
+                
+                sizes.add(component.getSize());
+                for (Point3i point : component)
+                {
+                    int offset = (point.z * height + point.y) * width + point.x;
+                    if (labels[offset] != 0) output.errors.add("T=" + t + ": component #" + sizes.size() + " overlaps another component");
+                    labels[offset] = sizes.size();
+                }
+            }
+            
+            int[] _sizes = new int[sizes.size()];
+            int[] classes = new int[sizes.size()];
+            for (int i = 0; i < _sizes.length; i++)
+                _sizes[i] = sizes.get(i);
+            Arrays.fill(classes, -1);
+            
+            output.frames[t] = new ReferenceHKMeans.Result(labels, _sizes, classes, null);
+        }
+        
+        return output;
+    }
+    
+    /**
+     * Paints the specified ROI with the specified label
+     * 
+     * @return <code>false</code> if the ROI overlaps an already painted voxel
+     */
+    private static boolean paint(ROI roi, int[] labels, int width, int height, int label)
+    {
+        boolean disjoint = true;
+        
+        if (roi instanceof ROI2D)
+        {
+            disjoint = paint(((ROI2D) roi).getBooleanMask(true), Math.max(((ROI2D) roi).getZ(), 0), labels, width, height, label);
+        }
+        else if (roi instanceof ROI3D)
+        {
+            for (Entry<Integer, BooleanMask2D> slice : ((ROI3D) roi).getBooleanMask(true).mask.entrySet())
+                disjoint &= paint(slice.getValue(), slice.getKey(), labels, width, height, label);
+        }
+        
+        return disjoint;
+    }
+    
+    private static boolean paint(BooleanMask2D mask, int z, int[] labels, int width, int height, int label)
+    {
+        boolean disjoint = true;
+        
+        int maskOffset = 0;
+        for (int j = 0; j < mask.bounds.height; j++)
+        {
+            int offset = (z * height + mask.bounds.y + j) * width + mask.bounds.x;
+            for (int i = 0; i < mask.bounds.width; i++, maskOffset++, offset++)
+            {
+                if (!mask.mask[maskOffset]) continue;
+                
+                if (labels[offset] != 0) disjoint = false;
+                labels[offset] = label;
+            }
+        }
+        
+        return disjoint;
+    }
+    
+    /**
+     * Segments the specified sequence (all channels and time points, no pre-filter) with the legacy
+     * path and with the {@link BaselineHKMeans baseline} it replaced, and compares the returned
+     * components (order, time point, size and voxels) and the labeled output
+     * 
+     * @param labeledOutput
+     *            <code>true</code> to request a labeled output (without it, the objects found in
+     *            channels other than the first are kept from one time point to the next)
+     * @return a description of each difference (empty if none)
+     */
+    @SuppressWarnings("deprecation")
+    public static List<String> compareLegacy(Sequence sequence, int nbClasses, int minSize, int maxSize, Double minValue, boolean labeledOutput)
+    {
+        final int width = sequence.getSizeX();
+        final int height = sequence.getSizeY();
+        
+        List<String> mismatches = new ArrayList<String>();
+        
+        Sequence expectedOUT = labeledOutput ? new Sequence() : null;
+        Sequence actualOUT = labeledOutput ? new Sequence() : null;
+        
+        List<ConnectedComponent> expected, actual;
+        try
+        {
+            expected = BaselineHKMeans.hKMeans(sequence, 0, nbClasses, minSize, maxSize, minValue, expectedOUT);
+            actual = HKMeans.hKMeans(sequence, 0, nbClasses, minSize, maxSize, minValue, actualOUT);
+        }
+        catch (ConvolutionException e)
+        {
+            mismatches.add("segmentation failed: " + e);
+            return mismatches;
+        }
+        
+        if (actual.size() != expected.size())
+        {
+            mismatches.add(actual.size() + " components found instead of " + expected.size());
+        }
+        
+        for (int i = 0; i < Math.min(actual.size(), expected.size()); i++)
+        {
+            ConnectedComponent a = actual.get(i), e = expected.get(i);
+            
+            if (a.getT() != e.getT())
+            {
+                mismatches.add("component #" + i + " is in T=" + a.getT() + " instead of T=" + e.getT());
+            }
+            else if (a.getSize() != e.getSize())
+            {
+                mismatches.add("component #" + i + " has " + a.getSize() + " voxels instead of " + e.getSize());
+            }
+            else if (!getOffsets(a, width, height).equals(getOffsets(e, width, height)))
+            {
+                mismatches.add("component #" + i + " does not have the same voxels");
+            }
+        }
+        
+        if (labeledOutput)
+        {
+            for (int t = 0; t < sequence.getSizeT(); t++)
+                for (int z = 0; z < sequence.getSizeZ(); z++)
+                    for (int c = 0; c < sequence.getSizeC(); c++)
+                    {
+                        if (!Arrays.equals(actualOUT.getDataXYAsInt(t, z, c), expectedOUT.getDataXYAsInt(t, z, c)))
+                        {
+                            mismatches.add("labeled output differs at T=" + t + ", Z=" + z + ", C=" + c);
+                        }
+                    }
+        }
+        
+        return mismatches;
+    }
+    
+    /**
+     * @return the (sorted) offsets of the voxels of the specified component
+     */
+    private static List<Integer> getOffsets(ConnectedComponent component, int width, int height)
+    {
+        List<Integer> offsets = new ArrayList<Integer>(component.getSize());
+        for (Point3i point : component)
+            offsets.add((point.z * height + point.y) * width + point.x);
+        Collections.sort(offsets);
+        return offsets;
+    }
+    
+    /**
+     * Segments the specified sequence (single channel) with the {@link BaselineHKMeans baseline}
+     * and with the specified engine (after a first run of each to warm up the JVM), and checks the
+     * profile of the engine against its budget
+     * 
+     * @return a description of each exceeded limit (empty if the budget is met)
+     */
+    public static List<String> checkBudget(Sequence sequence, byte nbClasses, int minSize, int maxSize, Engine engine) throws Exception
+    {
+        final long nbVoxels = (long) sequence.getSizeX() * sequence.getSizeY() * sequence.getSizeZ() * sequence.getSizeT();
+        
+        BaselineHKMeans.hKMeans(sequence, 0, nbClasses, minSize, maxSize, null, null);
+        
+        long baselineTime = System.nanoTime();
+        BaselineHKMeans.hKMeans(sequence, 0, nbClasses, minSize, maxSize, null, null);
+        baselineTime = System.nanoTime() - baselineTime;
+        
+        engine.segment(sequence, nbClasses, minSize, maxSize, null, new ExecutionProfile());
+        
+        ExecutionProfile profile = new ExecutionProfile();
+        long time = System.nanoTime();
+        engine.segment(sequence, nbClasses, minSize, maxSize, null, profile);
+        time = System.nanoTime() - time;
+        
+        List<String> violations = engine.budget.check(profile, time, nbVoxels, baselineTime);
+        if (violations.isEmpty())
+        {
+            System.out.println("  " + sequence.getName() + ": " + profile + " (" + (time / 1000000) + " ms, baseline: " + (baselineTime / 1000000) + " ms)");
+        }
+        return violations;
+    }
+    
+    /**
+     * Checks all engines on randomized synthetic sequences
+     * 
+     * @param args
+     *            optional: the number of random sequences per data type and dimension (default: 3)
+     * @throws Exception
+     *             if an engine cannot be profiled
+     */
+    public static void main(String[] args) throws Exception
+    {
+        final int nbSequences = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final byte nbClasses = 5;
+        
+        int nbFailures = 0;
+        long seed = 0;
+        
+        for (Engine engine : getEngines())
+        {
+            System.out.println("Engine: " + engine.name);
+            
+            // equivalence
+            
+            Comparison total = new Comparison();
+            
+            for (DataType dataType : DATA_TYPES)
+                for (int depth : new int[] { 1, 8 })
+                    for (int i = 0; i < nbSequences; i++)
+                    {
+                        seed++;
+                        Sequence sequence = createSyntheticSequence(dataType, 96, 64, depth, 4, seed);
+                        // check the intensity constraint on every other sequence
+                        double[] range = getRange(dataType);
+                        Double minIntensity = seed % 2 == 0 ? null : range[0] + 0.5 * (range[1] - range[0]);
+                        
+                        total.add(sequence.getName(), compare(sequence, nbClasses, 10, 96 * 64 * depth / 4, minIntensity, engine));
+                    }
+            
+            System.out.println("  " + total.nbFrames + " frames (" + total.nbSkippedFrames + " skipped), " + total.nbObjects + " objects");
+            
+            // paths, on dense and sparse frames large enough to be sampled (512 x 512, or
+            // 256 x 256 x 8), i.e. about 16000 (resp. 32000) voxels at the default stride
+            
+            Comparison large = new Comparison();
+            
+            for (DataType dataType : new DataType[] { DataType.USHORT, DataType.FLOAT })
+                for (int depth : new int[] { 1, 8 })
+                {
+                    seed++;
+                    int size = depth == 1 ? 512 : 256;
+                    double[] range = getRange(dataType);
+                    Double minIntensity = seed % 2 == 0 ? null : range[0] + 0.5 * (range[1] - range[0]);
+                    
+                    for (Sequence sequence : new Sequence[] { createSyntheticSequence(dataType, size, size, depth, 3, seed), createSparseSequence(dataType, size, size, depth, 3, seed) })
+                        large.add(sequence.getName(), compare(sequence, nbClasses, 10, size * size * depth / 4, minIntensity, engine));
+                }
+            
+            System.out.println("  large frames: " + large.nbFrames + " frames (" + large.nbSkippedFrames + " skipped, " + large.nbSampledFrames + " sampled, "
+                    + large.nbRefinedFrames + " refined), " + large.nbObjects + " objects");
+            
+            total.add("large frames", large);
+            
+            if (engine.plan != null && engine.plan.getSamplingStride() > 1 && large.nbSampledFrames == 0)
+            {
+                total.mismatches.add("large frames: no frame was sampled");
+            }
+            if (engine.plan != null && engine.plan.getSamplingStride() == 1 && large.nbSampledFrames > 0)
+            {
+                total.mismatches.add("large frames: " + large.nbSampledFrames + " frames were sampled");
+            }
+            if (engine.plan != null && engine.plan.getPyramidFactor() > 1 && large.nbRefinedFrames == 0)
+            {
+                total.mismatches.add("large frames: no frame was extracted within its candidate regions");
+            }
+            
+            for (String mismatch : total.mismatches)
+                System.out.println("  MISMATCH " + mismatch);
+            if (!total.isEquivalent()) nbFailures++;
+            
+            // performance (on dense and sparse frames, where a per-region or per-object allocation
+            // would stand out)
+            
+            if (engine.budget == null) continue;
+            
+            List<String> violations = new ArrayList<String>();
+            for (Sequence sequence : new Sequence[] { createSyntheticSequence(DataType.USHORT, 512, 512, 8, 2, 0), createSparseSequence(DataType.USHORT, 512, 512, 8, 2, 0) })
+                for (String violation : checkBudget(sequence, nbClasses, 10, 512 * 512 * 8 / 4, engine))
+                    violations.add(sequence.getName() + ", " + violation);
+            
+            for (String violation : violations)
+                System.out.println("  OVER BUDGET " + violation);
+            if (!violations.isEmpty()) nbFailures++;
+        }
+        
+        // legacy path vs. baseline (on 2 channels, with and without labeled output)
+        
+        System.out.println("Legacy path vs. baseline");
+        
+        List<String> legacyMismatches = new ArrayList<String>();
+        
+        for (DataType dataType : DATA_TYPES)
+            for (int depth : new int[] { 1, 8 })
+                for (int i = 0; i < nbSequences; i++)
+                {
+                    seed++;
+                    Sequence c0 = createSyntheticSequence(dataType, 96, 64, depth, 4, seed);
+                    Sequence c1 = createSyntheticSequence(dataType, 96, 64, depth, 4, -seed);
+                    Sequence sequence = stackChannels(c0, c1);
+                    double[] range = getRange(dataType);
+                    Double minIntensity = seed % 2 == 0 ? null : range[0] + 0.5 * (range[1] - range[0]);
+                    
+                    for (boolean labeledOutput : new boolean[] { true, false })
+                        for (String mismatch : compareLegacy(sequence, nbClasses, 10, 96 * 64 * depth / 4, minIntensity, labeledOutput))
+                            legacyMismatches.add(sequence.getName() + (labeledOutput ? " (labeled output), " : ", ") + mismatch);
+                }
+        
+        for (String mismatch : legacyMismatches)
+            System.out.println("  MISMATCH " + mismatch);
+        if (!legacyMismatches.isEmpty()) nbFailures++;
+        
+        System.out.println(nbFailures == 0 ? "All engines passed" : nbFailures + " check(s) failed");
+        System.exit(nbFailures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,117 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import plugins.adufour.hierarchicalkmeans.ExecutionProfile.Stage;
+
+/**
+ * Maximum time and memory allocation allowed for an HK-Means segmentation. Allocations are limited
+ * in bytes per processed voxel (i.e. per voxel of each segmented frame) for each stage, so that a
+ * regression allocating a frame-sized buffer per object, per region or per class exceeds the
+ * budget, however much other implementations allocate. The total time is limited w.r.t. the
+ * {@link BaselineHKMeans baseline} (the original HK-Means based on the Connected Components
+ * plug-in) timed on the same frames in the same run, so that the same budget applies to any
+ * machine. Budgets are checked by the {@link EquivalenceOracle}.
+ * 
+ * @author Alexandre Dufour
+ */
+public class PerformanceBudget
+{
+    private final double[] bytesPerVoxel = new double[Stage.values().length];
+    
+    private double timeRatio = Double.POSITIVE_INFINITY;
+    
+    /**
+     * Creates an unlimited budget
+     */
+    public PerformanceBudget()
+    {
+        for (Stage stage : Stage.values())
+            bytesPerVoxel[stage.ordinal()] = Double.POSITIVE_INFINITY;
+    }
+    
+    /**
+     * @return the default budget for up to 5 classes (without pre-filter):
+     *         <ul>
+     *         <li>the copy of each frame goes to buffers allocated once per thread,</li>
+     *         <li>the thresholds may use a copy of the frame in double precision (8 bytes per
+     *         voxel), twice,</li>
+     *         <li>the extraction may label each class on the entire frame (4 + 1 bytes per voxel,
+     *         see {@link MemoryPlanner}), about 3 times,</li>
+     *         <li>the total time may not exceed twice that of the baseline.</li>
+     *         </ul>
+     */
+    public static PerformanceBudget getDefault()
+    {
+        PerformanceBudget budget = new PerformanceBudget();
+        budget.setLimit(Stage.COPY, 1);
+        budget.setLimit(Stage.THRESHOLDS, 16);
+        budget.setLimit(Stage.EXTRACTION, 64);
+        budget.setTimeLimit(2);
+        return budget;
+    }
+    
+    /**
+     * Sets the allocation limit of the specified stage
+     * 
+     * @param stage
+     *            the stage to limit
+     * @param bytesPerVoxel
+     *            the maximum memory allocated in this stage, in bytes per processed voxel (ignored
+     *            if allocations cannot be measured, see
+     *            {@link ExecutionProfile#isAllocationSupported()})
+     */
+    public void setLimit(Stage stage, double bytesPerVoxel)
+    {
+        this.bytesPerVoxel[stage.ordinal()] = bytesPerVoxel;
+    }
+    
+    /**
+     * @param baselineRatio
+     *            the maximum ratio between the total (wall-clock) time of the segmentation and that
+     *            of the baseline
+     */
+    public void setTimeLimit(double baselineRatio)
+    {
+        timeRatio = baselineRatio;
+    }
+    
+    /**
+     * Checks the specified profile against this budget. Stages that are not measured (e.g. all
+     * stages of an engine that cannot be profiled) are only accounted for in the total time
+     * 
+     * @param profile
+     *            the profile of a segmentation
+     * @param time
+     *            the total (wall-clock) time of the segmentation, in nanoseconds
+     * @param nbVoxels
+     *            the number of processed voxels (over all segmented frames)
+     * @param baselineTime
+     *            the total (wall-clock) time of the baseline on the same frames, in nanoseconds
+     * @return a description of each exceeded limit (empty if the budget is met)
+     */
+    public List<String> check(ExecutionProfile profile, long time, long nbVoxels, long baselineTime)
+    {
+        List<String> violations = new ArrayList<String>();
+        
+        double ratio = time / (double) Math.max(1, baselineTime);
+        if (ratio > timeRatio)
+        {
+            violations.add(String.format("total: %.2fx the baseline time (budget: %.2fx)", ratio, timeRatio));
+        }
+        
+        if (!ExecutionProfile.isAllocationSupported()) return violations;
+        
+        for (Stage stage : Stage.values())
+        {
+            double allocated = profile.getAllocatedBytes(stage) / (double) Math.max(1, nbVoxels);
+            if (allocated > bytesPerVoxel[stage.ordinal()])
+            {
+                violations.add(String.format("%s: %.1f bytes allocated per voxel (budget: %.1f)", stage, allocated, bytesPerVoxel[stage.ordinal()]));
+            }
+        }
+        
+        return violations;
+    }
+}
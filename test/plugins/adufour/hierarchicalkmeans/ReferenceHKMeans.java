@@ -0,0 +1,284 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.Arrays;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import icy.type.collection.array.ArrayUtil;
+import plugins.adufour.thresholder.KMeans;
+
+/**
+ * Reference implementation of the hierarchical extraction of {@link HKMeans} on plain arrays.<br>
+ * <br>
+ * This implementation deliberately favors readability over speed, and serves as an oracle to
+ * check that optimized engines (see {@link EquivalenceOracle}) extract the same objects as the
+ * original algorithm:
+ * <ol>
+ * <li>the K-Means thresholds are computed on a full scan of the frame, with the original K-Means of
+ * the Thresholder plug-in (see {@link #computeThresholds(Sequence, int, int, int)}),</li>
+ * <li>each voxel is assigned to the number of K-Means thresholds it exceeds,</li>
+ * <li>for each class <code>k = 1..n-1</code> in ascending order, the connected components
+ * (8-connectivity in 2D, 26-connectivity in 3D) of the voxels of class <code>k</code> or above
+ * that do not belong to an object yet are extracted,</li>
+ * <li>components violating the size or intensity constraints are discarded, the others become
+ * objects of class <code>k</code>.</li>
+ * </ol>
+ * The frame is not pre-filtered. The extraction can also be given other thresholds (e.g. those of an
+ * engine computing approximate thresholds), to check the extraction separately from the
+ * thresholds.
+ * 
+ * @author Alexandre Dufour
+ */
+public class ReferenceHKMeans
+{
+    /**
+     * Objects extracted from a single frame
+     */
+    public static class Result
+    {
+        /**
+         * Object of each voxel (1-based index, 0 for voxels outside any object)
+         */
+        public final int[] labels;
+        
+        /**
+         * Size (in voxels) of each object
+         */
+        public final int[] sizes;
+        
+        /**
+         * Class of each object (i.e. the class at which it was accepted)
+         */
+        public final int[] classes;
+        
+        /**
+         * Thresholds used to classify the frame
+         */
+        public final double[] thresholds;
+        
+        Result(int[] labels, int[] sizes, int[] classes, double[] thresholds)
+        {
+            this.labels = labels;
+            this.sizes = sizes;
+            this.classes = classes;
+            this.thresholds = thresholds;
+        }
+        
+        /**
+         * @return the number of objects
+         */
+        public int getCount()
+        {
+            return sizes.length;
+        }
+    }
+    
+    /**
+     * @return the intensity of each voxel of the specified frame (slice by slice, row by row)
+     */
+    public static double[] getValues(Sequence sequence, int t, int c)
+    {
+        final int sliceSize = sequence.getSizeX() * sequence.getSizeY();
+        final DataType dataType = sequence.getDataType_();
+        
+        double[] values = new double[sliceSize * sequence.getSizeZ()];
+        
+        for (int z = 0, i = 0; z < sequence.getSizeZ(); z++)
+        {
+            Object data = sequence.getDataXY(t, z, c);
+            for (int offset = 0; offset < sliceSize; offset++, i++)
+                values[i] = Array1DUtil.getValue(data, offset, dataType);
+        }
+        
+        return values;
+    }
+    
+    /**
+     * @return the maximum intensity of each voxel over all time points and channels of the
+     *         specified sequence (slice by slice, row by row), i.e. the values on which the minimum
+     *         intensity constraint is evaluated
+     */
+    public static double[] getMaxValues(Sequence sequence)
+    {
+        double[] max = getValues(sequence, 0, 0);
+        
+        for (int t = 0; t < sequence.getSizeT(); t++)
+            for (int c = 0; c < sequence.getSizeC(); c++)
+            {
+                double[] values = getValues(sequence, t, c);
+                for (int i = 0; i < max.length; i++)
+                    max[i] = Math.max(max[i], values[i]);
+            }
+        
+        return max;
+    }
+    
+    /**
+     * Computes the reference K-Means thresholds of a frame, i.e. with the original K-Means on a
+     * full scan of an (unfiltered) copy of the frame
+     * 
+     * @param sequence
+     *            the sequence to process
+     * @param t
+     *            the time point to process
+     * @param c
+     *            the channel to process
+     * @param nbClasses
+     *            the number of K-Means classes
+     * @return the <code>nbClasses - 1</code> thresholds
+     */
+    public static double[] computeThresholds(Sequence sequence, int t, int c, int nbClasses)
+    {
+        final DataType dataType = sequence.getDataType_();
+        
+        Sequence frame = new Sequence();
+        for (int z = 0; z < sequence.getSizeZ(); z++)
+        {
+            IcyBufferedImage image = new IcyBufferedImage(sequence.getSizeX(), sequence.getSizeY(), 1, dataType);
+            ArrayUtil.arrayToArray(sequence.getDataXY(t, z, c), image.getDataXY(0), dataType.isSigned());
+            frame.setImage(0, z, image);
+        }
+        
+        return KMeans.computeKMeansThresholds(frame, 0, nbClasses, 255);
+    }
+    
+    /**
+     * @param value
+     *            an intensity value
+     * @param thresholds
+     *            the K-Means thresholds (sorted)
+     * @return the class of the specified value, i.e. the number of thresholds strictly below it
+     */
+    public static int classify(double value, double[] thresholds)
+    {
+        int k = 0;
+        while (k < thresholds.length && value > thresholds[k])
+            k++;
+        return k;
+    }
+    
+    /**
+     * Extracts the objects of a single frame
+     * 
+     * @param values
+     *            the intensity of each voxel (slice by slice, row by row)
+     * @param width
+     *            the width of the frame
+     * @param height
+     *            the height of the frame
+     * @param depth
+     *            the depth of the frame
+     * @param thresholds
+     *            the K-Means thresholds of the frame
+     * @param minSize
+     *            the minimum size in voxels of the objects
+     * @param maxSize
+     *            the maximum size in voxels of the objects
+     * @param minIntensity
+     *            the minimum intensity value each object should have (or <code>null</code>)
+     * @param filterValues
+     *            the intensity of each voxel on which the minimum intensity is checked (e.g. its
+     *            maximum over all time points and channels, see {@link #getMaxValues(Sequence)}),
+     *            or <code>null</code> to check the intensity values of the frame
+     * @return the extracted objects
+     */
+    public static Result extract(double[] values, int width, int height, int depth, double[] thresholds, int minSize, int maxSize, Double minIntensity,
+            double[] filterValues)
+    {
+        if (filterValues == null) filterValues = values;
+        
+        final int nbClasses = thresholds.length + 1;
+        
+        int[] classes = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            classes[i] = classify(values[i], thresholds);
+        
+        int[] labels = new int[values.length];
+        int[] component = new int[values.length];
+        int[] queue = new int[values.length];
+        
+        IntList sizes = new IntList();
+        IntList objectClasses = new IntList();
+        
+        for (int k = 1; k < nbClasses; k++)
+        {
+            // 0 = not visited for this class
+            Arrays.fill(component, 0);
+            int nbComponents = 0;
+            
+            for (int seed = 0; seed < values.length; seed++)
+            {
+                if (classes[seed] < k || labels[seed] != 0 || component[seed] != 0) continue;
+                
+                // flood fill the component of the seed
+                int id = ++nbComponents;
+                int head = 0, tail = 0;
+                double max = filterValues[seed];
+                
+                component[seed] = id;
+                queue[tail++] = seed;
+                
+                while (head < tail)
+                {
+                    int voxel = queue[head++];
+                    max = Math.max(max, filterValues[voxel]);
+                    
+                    int x = voxel % width, y = (voxel / width) % height, z = voxel / (width * height);
+                    
+                    for (int dz = -1; dz <= 1; dz++)
+                        for (int dy = -1; dy <= 1; dy++)
+                            for (int dx = -1; dx <= 1; dx++)
+                            {
+                                int nx = x + dx, ny = y + dy, nz = z + dz;
+                                if (nx < 0 || ny < 0 || nz < 0 || nx >= width || ny >= height || nz >= depth) continue;
+                                
+                                int neighbor = (nz * height + ny) * width + nx;
+                                if (classes[neighbor] < k || labels[neighbor] != 0 || component[neighbor] != 0) continue;
+                                
+                                component[neighbor] = id;
+                                queue[tail++] = neighbor;
+                            }
+                }
+                
+                // tail is the size of the component, and queue[0..tail) its voxels
+                if (tail < minSize || tail > maxSize) continue;
+                if (minIntensity != null && max < minIntensity) continue;
+                
+                sizes.add(tail);
+                objectClasses.add(k);
+                for (int i = 0; i < tail; i++)
+                    labels[queue[i]] = sizes.size();
+            }
+        }
+        
+        return new Result(labels, sizes.toArray(), objectClasses.toArray(), thresholds);
+    }
+    
+    /**
+     * Minimal growable list of integers
+     */
+    private static class IntList
+    {
+        private int[] data = new int[16];
+        
+        private int size = 0;
+        
+        void add(int value)
+        {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = value;
+        }
+        
+        int size()
+        {
+            return size;
+        }
+        
+        int[] toArray()
+        {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.ROI;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.rectangle.Rectangle3D;
+import plugins.kernel.roi.roi2d.ROI2DArea;
+
+/**
+ * Writes HK-Means result files with {@link HKMeansResultWriter} and reads them back with
+ * {@link HKMeansResultReader}, including an empty object (which must be stored with empty bounds
+ * and NaN statistics, and read back as an empty ROI), and checks that version 1 files remain
+ * readable.<br>
+ * <br>
+ * Run {@link #main(String[])} to perform the checks: the process exits with a non-zero status if
+ * any check fails. This class belongs to the test sources, and is not exported with the plug-in.
+ * 
+ * @author Alexandre Dufour
+ */
+public class ResultFileRoundTrip
+{
+    /**
+     * Writes an empty object and a 2-voxel object measured during a (simulated) segmentation, and
+     * reads them back
+     * 
+     * @return a description of each failed check (empty if none)
+     */
+    public static List<String> checkRoundTrip(File file) throws IOException
+    {
+        List<String> failures = new ArrayList<String>();
+        
+        Sequence sequence = EquivalenceOracle.createSyntheticSequence(DataType.USHORT, 16, 8, 1, 1, 0);
+        
+        ROI empty = new ROI2DArea(new BooleanMask2D(new Rectangle(0, 0, 0, 0), new boolean[0]));
+        ROI pair = new ROI2DArea(new BooleanMask2D(new Rectangle(3, 2, 2, 1), new boolean[] { true, true }));
+        pair.setColor(Color.ORANGE);
+        
+        ObjectMeasurements measurements = new ObjectMeasurements();
+        measurements.measure(empty, sequence, 0, 0, 1);
+        measurements.measure(pair, sequence, 0, 0, 2);
+        
+        ThresholdTable thresholds = new ThresholdTable(1, 1);
+        thresholds.setThresholds(0, 0, new double[] { 10, 20 }, true);
+        
+        HKMeansResultWriter.write(file, sequence, 0, (byte) 3, 1, 100, null, thresholds, Arrays.asList(empty, pair), measurements);
+        
+        HKMeansResultReader reader = new HKMeansResultReader(file);
+        try
+        {
+            if (reader.getObjectCount() != 2) failures.add(reader.getObjectCount() + " objects read instead of 2");
+            
+            Rectangle3D.Integer bounds = reader.getBounds(0);
+            if (reader.getSize(0) != 0) failures.add("the empty object has " + reader.getSize(0) + " voxels");
+            if (bounds.sizeX < 0 || bounds.sizeY < 0 || bounds.sizeZ < 0) failures.add("the empty object has negative bounds");
+            if (!Double.isNaN(reader.getMeanValue(0))) failures.add("the empty object has a mean intensity");
+            if (reader.getSpans(0).length != 0) failures.add("the empty object has spans");
+            try
+            {
+                reader.getROI(0);
+            }
+            catch (RuntimeException e)
+            {
+                failures.add("the empty object cannot be read back as a ROI: " + e);
+            }
+            
+            if (reader.getSize(1) != 2) failures.add("the second object has " + reader.getSize(1) + " voxels instead of 2");
+            if (!Arrays.equals(reader.getSpans(1), new int[] { 0, 2, 3, 2 })) failures.add("the second object has spans " + Arrays.toString(reader.getSpans(1)));
+            if (reader.getClassID(1) != 2) failures.add("the second object has class " + reader.getClassID(1) + " instead of 2");
+            if (!Color.ORANGE.equals(reader.getColor(1))) failures.add("the second object has color " + reader.getColor(1));
+            
+            if (!reader.getThresholds().isSampled(0, 0)) failures.add("the sampled flag is lost");
+            if (!Arrays.equals(reader.getThresholds().getThresholds(0, 0), new double[] { 10, 20 })) failures.add("the thresholds are lost");
+        }
+        finally
+        {
+            reader.close();
+        }
+        
+        return failures;
+    }
+    
+    /**
+     * Reads a (hand-written) version 1 file, i.e. without ROI colors nor threshold flags
+     * 
+     * @return a description of each failed check (empty if none)
+     */
+    public static List<String> checkVersion1(File file) throws IOException
+    {
+        List<String> failures = new ArrayList<String>();
+        
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try
+        {
+            // header, one threshold entry (t, c, length, values), one span
+            final long spanOffset = 68 + 4 + 12 + 16;
+            out.writeInt(HKMeansResultWriter.MAGIC);
+            out.writeInt(1);
+            out.writeInt(1);
+            out.writeLong(spanOffset + HKMeansResultWriter.SPAN_SIZE);
+            for (int size : new int[] { 16, 8, 1, 1, 1 })
+                out.writeInt(size);
+            out.writeDouble(0);
+            out.writeInt(3);
+            out.writeInt(1);
+            out.writeInt(100);
+            out.writeDouble(Double.NaN);
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(2);
+            out.writeDouble(10);
+            out.writeDouble(20);
+            for (int value : new int[] { 0, 2, 3, 2 })
+                out.writeInt(value);
+            // record: t, c, size, bounds, min, max, mean, center, span offset, span count, class
+            for (int value : new int[] { 0, 0, 2, 3, 2, 0, 4, 2, 0 })
+                out.writeInt(value);
+            for (double value : new double[] { 1, 2, 1.5, 3.5, 2, 0 })
+                out.writeDouble(value);
+            out.writeLong(spanOffset);
+            out.writeInt(1);
+            out.writeInt(2);
+        }
+        finally
+        {
+            out.close();
+        }
+        
+        HKMeansResultReader reader = new HKMeansResultReader(file);
+        try
+        {
+            if (reader.getObjectCount() != 1) failures.add("version 1: " + reader.getObjectCount() + " objects read instead of 1");
+            if (reader.getSize(0) != 2) failures.add("version 1: the object has " + reader.getSize(0) + " voxels instead of 2");
+            if (reader.getClassID(0) != 2) failures.add("version 1: the object has class " + reader.getClassID(0) + " instead of 2");
+            if (reader.getColor(0) != null) failures.add("version 1: the object has a color");
+            if (!Arrays.equals(reader.getSpans(0), new int[] { 0, 2, 3, 2 })) failures.add("version 1: the object has spans " + Arrays.toString(reader.getSpans(0)));
+            if (!Arrays.equals(reader.getThresholds().getThresholds(0, 0), new double[] { 10, 20 })) failures.add("version 1: the thresholds are lost");
+        }
+        finally
+        {
+            reader.close();
+        }
+        
+        return failures;
+    }
+    
+    /**
+     * Performs all checks
+     * 
+     * @param args
+     *            ignored
+     * @throws IOException
+     *             if a temporary file cannot be written
+     */
+    public static void main(String[] args) throws IOException
+    {
+        File file = File.createTempFile("hkmeans-roundtrip", ".hkmr");
+        
+        List<String> failures = new ArrayList<String>();
+        try
+        {
+            failures.addAll(checkRoundTrip(file));
+            failures.addAll(checkVersion1(file));
+        }
+        finally
+        {
+            file.delete();
+        }
+        
+        for (String failure : failures)
+            System.out.println("FAILED " + failure);
+        System.out.println(failures.isEmpty() ? "All result file checks passed" : failures.size() + " check(s) failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,76 @@
+package plugins.adufour.hierarchicalkmeans;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the voxel indices used by {@link CompactComponents} do not overflow on stacks of
+ * more than 2<sup>31</sup> voxels (e.g. 2048 x 2048 x 600), i.e. that every voxel maps to a
+ * distinct index in raster order and back to its own slice and offset. Such stacks are too large
+ * to be segmented here, hence only the indexing is checked.<br>
+ * <br>
+ * Run {@link #main(String[])} to perform the checks: the process exits with a non-zero status if
+ * any check fails. This class belongs to the test sources, and is not exported with the plug-in.
+ * 
+ * @author Alexandre Dufour
+ */
+public class StackIndexOverflow
+{
+    /**
+     * @return a description of each failed check (empty if none)
+     */
+    public static List<String> checkIndices(int width, int height, int depth)
+    {
+        List<String> failures = new ArrayList<String>();
+        
+        final int sliceSize = width * height;
+        
+        long previous = -1;
+        
+        // first and last voxels of each slice (where an int index would wrap around)
+        for (int z = 0; z < depth; z++)
+            for (int offset : new int[] { 0, 1, sliceSize - 1 })
+            {
+                long index = CompactComponents.getIndex(z, offset, sliceSize);
+                
+                if (index <= previous)
+                {
+                    failures.add(width + "x" + height + "x" + depth + ": index of (z=" + z + ", offset=" + offset + ") is " + index + ", not after " + previous);
+                    return failures;
+                }
+                previous = index;
+                
+                int _z = CompactComponents.getZ(index, sliceSize), _offset = CompactComponents.getOffset(index, sliceSize);
+                if (_z != z || _offset != offset)
+                {
+                    failures.add(width + "x" + height + "x" + depth + ": (z=" + z + ", offset=" + offset + ") is read back as (z=" + _z + ", offset=" + _offset + ")");
+                    return failures;
+                }
+            }
+        
+        long expected = (long) width * height * depth - 1;
+        if (previous != expected) failures.add(width + "x" + height + "x" + depth + ": last index is " + previous + " instead of " + expected);
+        
+        return failures;
+    }
+    
+    /**
+     * Performs the checks on stacks below and above 2<sup>31</sup> voxels
+     * 
+     * @param args
+     *            ignored
+     */
+    public static void main(String[] args)
+    {
+        List<String> failures = new ArrayList<String>();
+        
+        failures.addAll(checkIndices(96, 64, 8));
+        failures.addAll(checkIndices(2048, 2048, 600));
+        failures.addAll(checkIndices(46340, 46340, 4));
+        
+        for (String failure : failures)
+            System.out.println("FAILED " + failure);
+        System.out.println(failures.isEmpty() ? "All stack index checks passed" : failures.size() + " check(s) failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+}